@@ -0,0 +1,270 @@
+package com.cassandra;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.QueryOptions;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.mariadb.ProgressStore;
+import com.mariadb.WatchProgress;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ProgressStore} on Cassandra.
+ *
+ * Progress lives in one partition per profile, clustered by movie id, so every
+ * read is a single-partition slice. Upserts are prepared statements executed
+ * asynchronously; at most {@code cassandra.maxInFlightWrites} are outstanding
+ * before callers wait. Until a write is acknowledged its value is served from
+ * memory, so a client reads back what it just posted. Read and write
+ * consistency levels are configurable with {@code cassandra.readConsistency} and
+ * {@code cassandra.writeConsistency}.
+ */
+public class CassandraProgressStore implements ProgressStore {
+
+  static final String CONTACT_POINTS = System.getProperty("cassandra.contactPoints", "127.0.0.1");
+  static final int PORT = Integer.getInteger("cassandra.port", 9042);
+  static final String KEYSPACE = System.getProperty("cassandra.keyspace", "netflix");
+  static final int REPLICATION_FACTOR = Integer.getInteger("cassandra.replicationFactor", 1);
+  static final ConsistencyLevel READ_CONSISTENCY = ConsistencyLevel.valueOf(
+      System.getProperty("cassandra.readConsistency", "LOCAL_QUORUM"));
+  static final ConsistencyLevel WRITE_CONSISTENCY = ConsistencyLevel.valueOf(
+      System.getProperty("cassandra.writeConsistency", "LOCAL_QUORUM"));
+  static final int MAX_IN_FLIGHT_WRITES = Integer.getInteger("cassandra.maxInFlightWrites", 1024);
+
+  private static final long WRITE_PERMIT_TIMEOUT_MS = 5000;
+  private static final int FETCH_SIZE = 500;
+
+  private final Cluster cluster;
+  private final Session session;
+  private final PreparedStatement upsert;
+  private final PreparedStatement selectOne;
+  private final PreparedStatement selectByProfile;
+  private final PreparedStatement selectPage;
+  private final PreparedStatement delete;
+
+  private final Semaphore writePermits = new Semaphore(MAX_IN_FLIGHT_WRITES);
+  // unacknowledged writes by profileId << 32 | movieId
+  private final Map<Long, WatchProgress> inFlight = new ConcurrentHashMap<>();
+
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong failedWrites = new AtomicLong();
+
+  /** Connects, creating the keyspace and table if they do not exist yet. */
+  public CassandraProgressStore() {
+    this(READ_CONSISTENCY, WRITE_CONSISTENCY);
+  }
+
+  CassandraProgressStore(ConsistencyLevel readConsistency, ConsistencyLevel writeConsistency) {
+    if (!KEYSPACE.matches("\\w+")) {
+      throw new IllegalArgumentException("Invalid cassandra.keyspace: " + KEYSPACE);
+    }
+    cluster = Cluster.builder()
+        .addContactPoints(CONTACT_POINTS.split(","))
+        .withPort(PORT)
+        .withQueryOptions(new QueryOptions().setConsistencyLevel(readConsistency).setFetchSize(FETCH_SIZE))
+        .build();
+    try {
+      try (Session bootstrap = cluster.connect()) {
+        bootstrap.execute("CREATE KEYSPACE IF NOT EXISTS " + KEYSPACE
+            + " WITH replication = {'class': 'SimpleStrategy', 'replication_factor': " + REPLICATION_FACTOR + "}");
+      }
+      session = cluster.connect(KEYSPACE);
+      session.execute("CREATE TABLE IF NOT EXISTS watch_progress ("
+          + " profile_id int,"
+          + " movie_id int,"
+          + " position_ms bigint,"
+          + " updated_at timestamp,"
+          + " PRIMARY KEY ((profile_id), movie_id))"
+          + " WITH CLUSTERING ORDER BY (movie_id ASC)");
+      upsert = session.prepare(
+          "INSERT INTO watch_progress (profile_id, movie_id, position_ms, updated_at) VALUES (?, ?, ?, ?)")
+          .setConsistencyLevel(writeConsistency);
+      delete = session.prepare("DELETE FROM watch_progress WHERE profile_id = ? AND movie_id = ?")
+          .setConsistencyLevel(writeConsistency);
+      selectOne = session.prepare("SELECT profile_id, movie_id, position_ms, updated_at FROM watch_progress"
+          + " WHERE profile_id = ? AND movie_id = ?");
+      selectByProfile = session.prepare("SELECT profile_id, movie_id, position_ms, updated_at FROM watch_progress"
+          + " WHERE profile_id = ?");
+      selectPage = session.prepare("SELECT profile_id, movie_id, position_ms, updated_at FROM watch_progress"
+          + " WHERE profile_id = ? AND movie_id > ? LIMIT ?");
+    } catch (DriverException e) {
+      cluster.close();
+      throw e;
+    }
+    System.out.println("Progress store: Cassandra " + CONTACT_POINTS + " keyspace " + KEYSPACE + " (read "
+        + readConsistency + ", write " + writeConsistency + ")");
+  }
+
+  private static long key(int profileId, int movieId) {
+    return ((long) profileId << 32) | (movieId & 0xffffffffL);
+  }
+
+  private static WatchProgress map(Row row) {
+    Date updatedAt = row.getTimestamp("updated_at");
+    return new WatchProgress(row.getInt("profile_id"), row.getInt("movie_id"), row.getLong("position_ms"),
+        updatedAt != null ? new Timestamp(updatedAt.getTime()) : null);
+  }
+
+  private List<WatchProgress> query(BoundStatement statement, int profileId, int afterMovieId, int limit)
+      throws SQLException {
+    List<WatchProgress> entries = new ArrayList<>();
+    try {
+      for (Row row : session.execute(statement)) {
+        entries.add(map(row));
+      }
+    } catch (DriverException e) {
+      throw new SQLException("Cassandra read failed for profile " + profileId, e);
+    }
+    return merge(entries, inFlight.values(), profileId, afterMovieId, limit);
+  }
+
+  /**
+   * {@code stored} (a profile's entries after {@code afterMovieId}, by movie id)
+   * with the unacknowledged writes of that profile in {@code pending} applied:
+   * they replace stored entries and add missing ones, and the result is cut back
+   * to {@code limit}.
+   */
+  static List<WatchProgress> merge(List<WatchProgress> stored, Collection<WatchProgress> pending, int profileId,
+      int afterMovieId, int limit) {
+    Map<Integer, WatchProgress> mine = new HashMap<>();
+    for (WatchProgress entry : pending) {
+      if (entry.profileId == profileId && entry.movieId > afterMovieId) {
+        mine.put(entry.movieId, entry);
+      }
+    }
+    if (mine.isEmpty()) {
+      return stored;
+    }
+    List<WatchProgress> merged = new ArrayList<>(stored.size() + mine.size());
+    for (WatchProgress entry : stored) {
+      WatchProgress newer = mine.remove(entry.movieId);
+      merged.add(newer != null ? newer : entry);
+    }
+    merged.addAll(mine.values());
+    merged.sort((a, b) -> Integer.compare(a.movieId, b.movieId));
+    return merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+  }
+
+  @Override
+  public List<WatchProgress> findByProfile(int profileId) throws SQLException {
+    return query(selectByProfile.bind(profileId), profileId, Integer.MIN_VALUE, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public List<WatchProgress> findPageByProfile(int profileId, int afterMovieId, int limit) throws SQLException {
+    return query(selectPage.bind(profileId, afterMovieId, limit), profileId, afterMovieId, limit);
+  }
+
+  @Override
+  public WatchProgress find(int profileId, int movieId) throws SQLException {
+    WatchProgress pending = inFlight.get(key(profileId, movieId));
+    if (pending != null) {
+      return pending;
+    }
+    try {
+      Row row = session.execute(selectOne.bind(profileId, movieId)).one();
+      return row != null ? map(row) : null;
+    } catch (DriverException e) {
+      throw new SQLException("Cassandra read failed for profile " + profileId, e);
+    }
+  }
+
+  @Override
+  public void upsert(int profileId, int movieId, long positionMs) throws SQLException {
+    try {
+      if (!writePermits.tryAcquire(WRITE_PERMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        throw new SQLException("Too many Cassandra writes in flight");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting to write progress", e);
+    }
+    long now = System.currentTimeMillis();
+    WatchProgress entry = new WatchProgress(profileId, movieId, positionMs, new Timestamp(now));
+    long key = key(profileId, movieId);
+    inFlight.put(key, entry);
+    ResultSetFuture future;
+    try {
+      future = session.executeAsync(upsert.bind(profileId, movieId, positionMs, new Date(now)));
+    } catch (DriverException e) {
+      inFlight.remove(key, entry);
+      writePermits.release();
+      throw new SQLException("Cassandra write failed for profile " + profileId, e);
+    }
+    writes.incrementAndGet();
+    future.addListener(() -> {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        failedWrites.incrementAndGet();
+        System.err.println(String.format("Cassandra progress write failed for profile %d movie %d: %s", profileId,
+            movieId, e.getCause()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        // a newer write of the same entry keeps its own slot
+        inFlight.remove(key, entry);
+        writePermits.release();
+      }
+    }, Runnable::run);
+  }
+
+  @Override
+  public boolean delete(int profileId, int movieId) throws SQLException {
+    boolean pending = inFlight.remove(key(profileId, movieId)) != null;
+    try {
+      boolean existed = pending || find(profileId, movieId) != null;
+      session.execute(delete.bind(profileId, movieId));
+      return existed;
+    } catch (DriverException e) {
+      throw new SQLException("Cassandra delete failed for profile " + profileId, e);
+    }
+  }
+
+  /** Waits briefly for outstanding writes, then closes the session and cluster. */
+  @Override
+  public void close() {
+    try {
+      if (writePermits.tryAcquire(MAX_IN_FLIGHT_WRITES, WRITE_PERMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        writePermits.release(MAX_IN_FLIGHT_WRITES);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    session.close();
+    cluster.close();
+  }
+
+  /** Writes sent but not yet acknowledged or failed. */
+  int inFlightWrites() {
+    return MAX_IN_FLIGHT_WRITES - writePermits.availablePermits();
+  }
+
+  long failedWrites() {
+    return failedWrites.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("progressStore=cassandra writes=%d failedWrites=%d inFlight=%d", writes.get(),
+        failedWrites.get(), inFlightWrites());
+  }
+}
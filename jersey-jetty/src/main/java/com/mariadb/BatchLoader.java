@@ -0,0 +1,158 @@
+package com.mariadb;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects point lookups that arrive close together and resolves them with one
+ * query.
+ *
+ * The first caller of a batch waits up to {@code db.batch.windowMicros} (or until
+ * {@code db.batch.maxSize} keys have joined), then runs the batch on its own
+ * thread and hands every waiting caller its row. A caller that arrives while no
+ * other lookup of this loader is running does not wait at all, so batching only
+ * adds latency when there is concurrency to gain from.
+ */
+class BatchLoader<K, V> {
+
+  static final long WINDOW_MICROS = Long.getLong("db.batch.windowMicros", 1000L);
+  static final int MAX_SIZE = Integer.getInteger("db.batch.maxSize", 64);
+
+  private static final List<BatchLoader<?, ?>> loaders = new CopyOnWriteArrayList<>();
+
+  /** Loads many keys at once; keys without a row are simply missing from the result. */
+  interface BatchFunction<K, V> {
+    Map<K, V> load(List<K> keys) throws SQLException;
+  }
+
+  private static final class Batch<K, V> {
+    final Map<K, CompletableFuture<V>> waiting = new LinkedHashMap<>();
+    final CountDownLatch full = new CountDownLatch(1);
+  }
+
+  private final String name;
+  private final BatchFunction<K, V> function;
+  private final Object lock = new Object();
+  private Batch<K, V> collecting = null;
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  private final AtomicLong lookups = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong batchedKeys = new AtomicLong();
+
+  BatchLoader(String name, BatchFunction<K, V> function) {
+    this.name = name;
+    this.function = function;
+    loaders.add(this);
+  }
+
+  /** Returns the value for {@code key}, or null when there is none. */
+  V load(K key) throws SQLException {
+    lookups.incrementAndGet();
+    boolean concurrent = inFlight.getAndIncrement() > 0;
+    try {
+      Batch<K, V> batch;
+      CompletableFuture<V> result;
+      boolean leader = false;
+      synchronized (lock) {
+        if (collecting == null) {
+          collecting = new Batch<>();
+          leader = true;
+        }
+        batch = collecting;
+        result = batch.waiting.computeIfAbsent(key, k -> new CompletableFuture<>());
+        if (batch.waiting.size() >= MAX_SIZE || (leader && !concurrent)) {
+          collecting = null;
+          batch.full.countDown();
+        }
+      }
+      if (leader) {
+        runBatch(batch);
+      }
+      return await(result);
+    } finally {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  private void runBatch(Batch<K, V> batch) {
+    try {
+      batch.full.await(WINDOW_MICROS, TimeUnit.MICROSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    List<K> keys;
+    synchronized (lock) {
+      if (collecting == batch) {
+        collecting = null;
+      }
+      keys = new ArrayList<>(batch.waiting.keySet());
+    }
+    batches.incrementAndGet();
+    batchedKeys.addAndGet(keys.size());
+    try {
+      Map<K, V> rows = function.load(keys);
+      for (Map.Entry<K, CompletableFuture<V>> entry : batch.waiting.entrySet()) {
+        entry.getValue().complete(rows.get(entry.getKey()));
+      }
+    } catch (SQLException | RuntimeException e) {
+      for (CompletableFuture<V> waiter : batch.waiting.values()) {
+        waiter.completeExceptionally(e);
+      }
+    }
+  }
+
+  private static <V> V await(CompletableFuture<V> result) throws SQLException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a batched lookup", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SQLException) {
+        throw (SQLException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new SQLException(cause);
+    }
+  }
+
+  /**
+   * Rounds a batch size up to a power of two; callers pad the key list with its
+   * last key so the statement cache only ever sees a handful of IN-list lengths.
+   */
+  static int paddedSize(int size) {
+    return size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+  }
+
+  @Override
+  public String toString() {
+    long b = batches.get();
+    return String.format("batchLoader=%s lookups=%d batches=%d avgBatch=%.2f", name, lookups.get(), b,
+        b == 0 ? 0.0 : (double) batchedKeys.get() / b);
+  }
+
+  static String stats() {
+    StringBuilder sb = new StringBuilder();
+    for (BatchLoader<?, ?> loader : loaders) {
+      if (sb.length() > 0) {
+        sb.append('\n');
+      }
+      sb.append(loader);
+    }
+    return sb.toString();
+  }
+}
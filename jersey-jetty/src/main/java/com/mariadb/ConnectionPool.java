@@ -0,0 +1,410 @@
+package com.mariadb;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded pool of JDBC connections.
+ *
+ * Connections are leased per call and handed back through {@link Lease#close()}.
+ * Idle connections are validated on borrow, idle ones above the minimum size are
+ * closed by a background reaper, and leases held longer than the leak threshold
+ * are reported together with the stack that borrowed them.
+ */
+public class ConnectionPool {
+
+  // skip the validation round trip for connections that were used very recently
+  private static final long VALIDATION_BYPASS_MS = 500;
+  private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+  private final String name;
+  private final String url;
+  private final String user;
+  private final String password;
+  private final int minSize;
+  private final int maxSize;
+  private final long borrowTimeoutMs;
+  private final long idleTimeoutMs;
+  private final long leakThresholdMs;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition available = lock.newCondition();
+  private final Deque<Entry> idle = new ArrayDeque<>();
+  private final Set<Lease> leased = ConcurrentHashMap.newKeySet();
+  private final ScheduledExecutorService reaper;
+  private int total = 0;
+  private int waiting = 0;
+  private boolean closed = false;
+
+  private final AtomicLong borrowed = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong evicted = new AtomicLong();
+  private final AtomicLong leaks = new AtomicLong();
+
+  /** A physical connection owned by the pool. */
+  static class Entry {
+    final Connection conn;
+    final StatementCache statements;
+    long lastUsed;
+
+    Entry(Connection conn) {
+      this.conn = conn;
+      this.statements = new StatementCache(conn);
+      this.lastUsed = System.currentTimeMillis();
+    }
+  }
+
+  /** A connection borrowed from the pool; closing it returns the connection. */
+  public static class Lease implements AutoCloseable {
+    private final ConnectionPool pool;
+    private final Entry entry;
+    private final long borrowedAt;
+    private final Exception borrowSite;
+    private boolean broken = false;
+    private boolean released = false;
+    private boolean leakReported = false;
+
+    Lease(ConnectionPool pool, Entry entry, Exception borrowSite) {
+      this.pool = pool;
+      this.entry = entry;
+      this.borrowedAt = System.currentTimeMillis();
+      this.borrowSite = borrowSite;
+    }
+
+    public Connection connection() {
+      return entry.conn;
+    }
+
+    /** Returns a cached prepared statement for {@code sql}; do not close it. */
+    public PreparedStatement prepare(String sql) throws SQLException {
+      return entry.statements.prepare(sql);
+    }
+
+    /** Like {@link #prepare(String)} but for inserts that read back generated keys. */
+    public PreparedStatement prepareReturningKeys(String sql) throws SQLException {
+      return entry.statements.prepare(sql, true);
+    }
+
+    /** Drops the connection instead of returning it if the error means it is unusable. */
+    public void evictIfBroken(SQLException se) {
+      if (se instanceof SQLNonTransientConnectionException || se instanceof SQLTransientConnectionException
+          || se instanceof SQLRecoverableException
+          || (se.getSQLState() != null && se.getSQLState().startsWith("08"))) {
+        broken = true;
+        return;
+      }
+      try {
+        broken = entry.conn.isClosed();
+      } catch (SQLException ignored) {
+        broken = true;
+      }
+    }
+
+    @Override
+    public synchronized void close() {
+      if (released) {
+        return;
+      }
+      released = true;
+      pool.release(this);
+    }
+  }
+
+  public ConnectionPool(String name, String url, String user, String password, int minSize, int maxSize,
+      long borrowTimeoutMs, long idleTimeoutMs, long leakThresholdMs) {
+    if (minSize < 0 || maxSize <= 0 || minSize > maxSize) {
+      throw new IllegalArgumentException("Invalid pool size: min=" + minSize + " max=" + maxSize);
+    }
+    this.name = name;
+    this.url = url;
+    this.user = user;
+    this.password = password;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.borrowTimeoutMs = borrowTimeoutMs;
+    this.idleTimeoutMs = idleTimeoutMs;
+    this.leakThresholdMs = leakThresholdMs;
+    this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "db-pool-" + name + "-reaper");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /** Opens the minimum number of connections and starts the maintenance task. */
+  public void start() throws SQLException {
+    fill();
+    reaper.scheduleWithFixedDelay(this::maintain, 10, 10, TimeUnit.SECONDS);
+  }
+
+  public Lease borrow() throws SQLException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMs);
+    while (true) {
+      Entry entry = takeIdleOrReserve(deadline);
+      if (entry == null) {
+        try {
+          entry = new Entry(open());
+        } catch (SQLException se) {
+          discardSlot();
+          throw se;
+        }
+      } else if (!isValid(entry)) {
+        discard(entry);
+        continue;
+      }
+      Lease lease = new Lease(this, entry,
+          leakThresholdMs > 0 ? new Exception("Connection borrowed from pool " + name) : null);
+      leased.add(lease);
+      borrowed.incrementAndGet();
+      return lease;
+    }
+  }
+
+  private Entry takeIdleOrReserve(long deadline) throws SQLException {
+    lock.lock();
+    try {
+      while (true) {
+        if (closed) {
+          throw new SQLNonTransientConnectionException("Connection pool " + name + " is closed");
+        }
+        Entry entry = idle.pollFirst();
+        if (entry != null) {
+          return entry;
+        }
+        if (total < maxSize) {
+          total++;
+          return null;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          timeouts.incrementAndGet();
+          throw new SQLTransientConnectionException(String.format(
+              "Timed out after %dms waiting for a connection from pool %s (%d in use)",
+              borrowTimeoutMs, name, total));
+        }
+        waiting++;
+        try {
+          available.awaitNanos(remaining);
+        } finally {
+          waiting--;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLTransientConnectionException("Interrupted while waiting for a database connection", e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean isValid(Entry entry) {
+    if (System.currentTimeMillis() - entry.lastUsed < VALIDATION_BYPASS_MS) {
+      return true;
+    }
+    try {
+      return entry.conn.isValid(VALIDATION_TIMEOUT_SECONDS);
+    } catch (SQLException se) {
+      return false;
+    }
+  }
+
+  private Connection open() throws SQLException {
+    return DriverManager.getConnection(url, user, password);
+  }
+
+  private void release(Lease lease) {
+    leased.remove(lease);
+    Entry entry = lease.entry;
+    boolean broken = lease.broken;
+    if (!broken) {
+      try {
+        if (!entry.conn.getAutoCommit()) {
+          entry.conn.rollback();
+          entry.conn.setAutoCommit(true);
+        }
+      } catch (SQLException se) {
+        broken = true;
+      }
+    }
+    if (broken) {
+      discard(entry);
+      return;
+    }
+    entry.lastUsed = System.currentTimeMillis();
+    lock.lock();
+    try {
+      if (!closed) {
+        idle.offerFirst(entry);
+        available.signal();
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+    discard(entry);
+  }
+
+  private void discard(Entry entry) {
+    evicted.incrementAndGet();
+    closeQuietly(entry);
+    discardSlot();
+  }
+
+  private void discardSlot() {
+    lock.lock();
+    try {
+      total--;
+      available.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void closeQuietly(Entry entry) {
+    entry.statements.closeAll();
+    try {
+      entry.conn.close();
+    } catch (SQLException ignored) {
+    }
+  }
+
+  private void fill() throws SQLException {
+    while (true) {
+      lock.lock();
+      try {
+        if (closed || total >= minSize) {
+          return;
+        }
+        total++;
+      } finally {
+        lock.unlock();
+      }
+      Entry entry;
+      try {
+        entry = new Entry(open());
+      } catch (SQLException se) {
+        discardSlot();
+        throw se;
+      }
+      lock.lock();
+      try {
+        idle.offerLast(entry);
+        available.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void maintain() {
+    List<Entry> expired = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    lock.lock();
+    try {
+      // idle connections are kept most-recently-used first, so the stale ones sit at the tail
+      Iterator<Entry> it = idle.descendingIterator();
+      while (it.hasNext() && total - expired.size() > minSize) {
+        Entry entry = it.next();
+        if (now - entry.lastUsed < idleTimeoutMs) {
+          break;
+        }
+        it.remove();
+        expired.add(entry);
+      }
+    } finally {
+      lock.unlock();
+    }
+    for (Entry entry : expired) {
+      discard(entry);
+    }
+    try {
+      fill();
+    } catch (SQLException se) {
+      System.err.println("Pool " + name + " unable to refill: " + se.getMessage());
+    }
+    if (leakThresholdMs > 0) {
+      for (Lease lease : leased) {
+        if (!lease.leakReported && now - lease.borrowedAt > leakThresholdMs) {
+          lease.leakReported = true;
+          leaks.incrementAndGet();
+          System.err.println(String.format("Pool %s: connection held for %dms, possible leak", name,
+              now - lease.borrowedAt));
+          lease.borrowSite.printStackTrace();
+        }
+      }
+    }
+  }
+
+  public void close() {
+    List<Entry> toClose;
+    lock.lock();
+    try {
+      closed = true;
+      toClose = new ArrayList<>(idle);
+      total -= idle.size();
+      idle.clear();
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    reaper.shutdownNow();
+    for (Entry entry : toClose) {
+      closeQuietly(entry);
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getActiveCount() {
+    return leased.size();
+  }
+
+  public int getIdleCount() {
+    lock.lock();
+    try {
+      return idle.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getWaitingCount() {
+    lock.lock();
+    try {
+      return waiting;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("pool=%s active=%d idle=%d waiting=%d max=%d borrowed=%d timeouts=%d evicted=%d leaks=%d",
+        name, getActiveCount(), getIdleCount(), getWaitingCount(), maxSize, borrowed.get(), timeouts.get(),
+        evicted.get(), leaks.get());
+  }
+}
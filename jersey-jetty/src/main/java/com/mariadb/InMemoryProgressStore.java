@@ -0,0 +1,62 @@
+package com.mariadb;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Process-local progress store, for running the server without MariaDB or
+ * Cassandra and as a stand-in when trying out the other stores.
+ *
+ * Entries are kept sorted by {@code profileId << 32 | movieId}, so a profile's
+ * entries form one contiguous range, the same layout as the Cassandra
+ * partition.
+ */
+public class InMemoryProgressStore implements ProgressStore {
+
+  private final ConcurrentSkipListMap<Long, WatchProgress> entries = new ConcurrentSkipListMap<>();
+
+  private static long key(int profileId, int movieId) {
+    return ((long) profileId << 32) | (movieId & 0xffffffffL);
+  }
+
+  private ConcurrentNavigableMap<Long, WatchProgress> profile(int profileId, int afterMovieId) {
+    return entries.subMap(key(profileId, afterMovieId), false, key(profileId, -1), true);
+  }
+
+  @Override
+  public List<WatchProgress> findByProfile(int profileId) {
+    return new ArrayList<>(entries.subMap(key(profileId, 0), true, key(profileId, -1), true).values());
+  }
+
+  @Override
+  public List<WatchProgress> findPageByProfile(int profileId, int afterMovieId, int limit) {
+    List<WatchProgress> page = new ArrayList<>();
+    for (WatchProgress entry : profile(profileId, afterMovieId).values()) {
+      if (page.size() >= limit) {
+        break;
+      }
+      page.add(entry);
+    }
+    return page;
+  }
+
+  @Override
+  public WatchProgress find(int profileId, int movieId) {
+    return entries.get(key(profileId, movieId));
+  }
+
+  @Override
+  public void upsert(int profileId, int movieId, long positionMs) {
+    // entries are replaced, never mutated, since readers hold on to them
+    entries.put(key(profileId, movieId),
+        new WatchProgress(profileId, movieId, positionMs, new Timestamp(System.currentTimeMillis())));
+  }
+
+  @Override
+  public boolean delete(int profileId, int movieId) {
+    return entries.remove(key(profileId, movieId)) != null;
+  }
+}
@@ -1,96 +1,105 @@
 package com.mariadb;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetProvider;
 
 public class Mariadb {
   // JDBC driver name and database URL
 
   static final String JDBC_DRIVER = "org.mariadb.jdbc.Driver";
-  static final String DB_URL = "jdbc:mariadb://192.168.100.174/db";
-
-  static private Connection conn = null;
-  static private Statement stmt = null;
+  // server-side prepares pay off now that statements are cached per connection
+  static final String DB_URL = "jdbc:mariadb://localhost:3306/db?useServerPrepStmts=true";
 
   // Database credentials
   static final String USER = "root";
   static final String PASS = "root";
 
+  // Pool sizing, overridable with -Ddb.pool.* system properties
+  static final int POOL_MIN_SIZE = Integer.getInteger("db.pool.minSize", 2);
+  static final int POOL_MAX_SIZE = Integer.getInteger("db.pool.maxSize", 16);
+  static final long POOL_BORROW_TIMEOUT_MS = Long.getLong("db.pool.borrowTimeoutMs", 5000);
+  static final long POOL_IDLE_TIMEOUT_MS = Long.getLong("db.pool.idleTimeoutMs", 600000);
+  static final long POOL_LEAK_THRESHOLD_MS = Long.getLong("db.pool.leakThresholdMs", 60000);
+
+  // rows fetched per round trip when a query is streamed instead of buffered
+  static final int STREAM_FETCH_SIZE = Integer.getInteger("db.streamFetchSize", 256);
+
+  // Read replicas: comma separated JDBC URLs; reads fall back to the primary when empty
+  static final String REPLICA_URLS = System.getProperty("db.replicas", "");
+  static final String REPLICA_SELECTION = System.getProperty("db.replicaSelection", "least-loaded");
+  static final long READ_YOUR_WRITES_MS = Long.getLong("db.readYourWritesMs", 5000);
+
+  // Write-behind buffering of progress heartbeats, see ProgressWriteBuffer
+  static final boolean PROGRESS_BUFFER_ENABLED = Boolean.parseBoolean(
+      System.getProperty("progress.buffer.enabled", "true"));
+
+  static private ConnectionPool pool = null;
+  static private ReplicaRouter replicas = new ReplicaRouter(new ArrayList<>(), true, 0);
+  static private ProgressWriteBuffer progressBuffer = null;
+  static private QueryCache queryCache = null;
+  static private ProgressArchiver progressArchiver = null;
+
+  interface SqlWork<T> {
+    T run(ConnectionPool.Lease lease) throws SQLException;
+  }
+
+  /** Work that runs inside one transaction, see {@link #inTransaction}. */
+  public interface UnitOfWork<T> {
+    T run(Transaction tx) throws SQLException;
+  }
+
+  // MariaDB error code for a unique/primary key violation
+  private static final int ER_DUP_ENTRY = 1062;
+
+  /** Typed SQL NULL for {@link #bind}; a plain {@code null} argument binds as an untyped NULL. */
+  public static final class SqlNull {
+    final int sqlType;
+
+    private SqlNull(int sqlType) {
+      this.sqlType = sqlType;
+    }
+  }
+
+  public static SqlNull nullOf(int sqlType) {
+    return new SqlNull(sqlType);
+  }
+
   static public boolean init() {
     try {
 
-      Class.forName("org.mariadb.jdbc.Driver");
+      Class.forName(JDBC_DRIVER);
 
-      // STEP 3: Open a connection
+      // STEP 3: Open the connection pool
       System.out.println("Connecting to a selected database...");
 
-      conn = DriverManager.getConnection(
-          "jdbc:mariadb://localhost:3306/db", "root", "root");
+      pool = new ConnectionPool("primary", DB_URL, USER, PASS, POOL_MIN_SIZE, POOL_MAX_SIZE,
+          POOL_BORROW_TIMEOUT_MS, POOL_IDLE_TIMEOUT_MS, POOL_LEAK_THRESHOLD_MS);
+      pool.start();
       System.out.println("Connected database successfully...");
+      replicas = new ReplicaRouter(openReplicas(), !"round-robin".equals(REPLICA_SELECTION), READ_YOUR_WRITES_MS);
+      if (QueryCache.ENABLED) {
+        queryCache = new QueryCache(replicas.hasReplicas() ? READ_YOUR_WRITES_MS : 0);
+      }
+
+      // STEP 4: Bring the schema up to date
+      SchemaMigrations.migrate();
 
-      // STEP 4: Execute a query
-      System.out.println("Creating table in given database...");
-      stmt = conn.createStatement();
-
-      String sql = "CREATE TABLE IF NOT EXISTS USER "
-          + "(id INT AUTO_INCREMENT not NULL, "
-          + " name VARCHAR(255) not NULL, "
-          + " password VARCHAR(255) not NULL,"
-          + " PRIMARY KEY ( id ))";
-
-      stmt.executeUpdate(sql);
-      sql = "CREATE TABLE IF NOT EXISTS CMS_USER "
-          + "(id INT AUTO_INCREMENT not NULL, "
-          + " username VARCHAR(255) not NULL UNIQUE, "
-          + " password VARCHAR(255) not NULL, "
-          + " PRIMARY KEY ( id ))";
-
-      stmt.executeUpdate(sql);
-      sql = "CREATE TABLE IF NOT EXISTS MOVIE "
-          + "(id INT AUTO_INCREMENT not NULL, "
-          + " name VARCHAR(255) not NULL, "
-          + " description VARCHAR(255),"
-          + " genre INT,"
-          + " year INT,"
-          + " videoPath VARCHAR(255) not NULL,"
-          + " thumbnailPath VARCHAR(255) not NULL,"
-          + " PRIMARY KEY ( id ))";
-
-      stmt.executeUpdate(sql);
-      sql = "CREATE TABLE IF NOT EXISTS PROFILE "
-          + "(id INT AUTO_INCREMENT not NULL, "
-          + " userId INT not NULL, "
-          + " name VARCHAR(255) not NULL, "
-          + " avatarColor VARCHAR(32) not NULL, "
-          + " kids BOOLEAN DEFAULT FALSE, "
-          + " PRIMARY KEY ( id ), "
-          + " CONSTRAINT fk_profile_user FOREIGN KEY (userId) REFERENCES USER(id) ON DELETE CASCADE, "
-          + " CONSTRAINT unique_user_profile UNIQUE (userId, name))";
-
-      stmt.executeUpdate(sql);
-      sql = "CREATE TABLE IF NOT EXISTS WATCH_PROGRESS "
-          + "(id INT AUTO_INCREMENT not NULL, "
-          + " profileId INT not NULL, "
-          + " movieId INT not NULL, "
-          + " positionMs BIGINT not NULL, "
-          + " updatedAt TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, "
-          + " PRIMARY KEY ( id ), "
-          + " CONSTRAINT fk_progress_profile FOREIGN KEY (profileId) REFERENCES PROFILE(id) ON DELETE CASCADE, "
-          + " CONSTRAINT fk_progress_movie FOREIGN KEY (movieId) REFERENCES MOVIE(id) ON DELETE CASCADE, "
-          + " CONSTRAINT unique_progress UNIQUE (profileId, movieId))";
-
-      stmt.executeUpdate(sql);
-      System.out.println("Created table in given database...");
-
-      // Seed default CMS admin user if missing
-      String[] adminArgs = { "admin" };
-      ResultSet adminExists = queryDB("SELECT id FROM CMS_USER WHERE username = ?", adminArgs);
-      if (adminExists == null || !adminExists.next()) {
-        String[] seedArgs = { "admin", "admin" };
-        insert("INSERT INTO CMS_USER(username,password) VALUES(?,?)", seedArgs);
-        System.out.println("Seeded default CMS admin user.");
+      if (PROGRESS_BUFFER_ENABLED) {
+        progressBuffer = new ProgressWriteBuffer();
+        progressBuffer.start();
+      }
+      if (ProgressArchiver.ENABLED) {
+        progressArchiver = new ProgressArchiver();
+        progressArchiver.start();
       }
     } catch (SQLException se) {
-      Mariadb.exit();
+      Mariadb.shutdown();
       se.printStackTrace();
       return false;
     } catch (Exception e) {
@@ -102,17 +111,311 @@ public class Mariadb {
     return true;
   }
 
-  public static ResultSet queryDB(String stm, String[] args) {
+  private static List<ConnectionPool> openReplicas() {
+    List<ConnectionPool> pools = new ArrayList<>();
+    int index = 0;
+    for (String url : REPLICA_URLS.split(",")) {
+      if (url.trim().isEmpty()) {
+        continue;
+      }
+      ConnectionPool replica = new ConnectionPool("replica" + index++, url.trim(), USER, PASS, POOL_MIN_SIZE,
+          POOL_MAX_SIZE, POOL_BORROW_TIMEOUT_MS, POOL_IDLE_TIMEOUT_MS, POOL_LEAK_THRESHOLD_MS);
+      try {
+        replica.start();
+        pools.add(replica);
+        System.out.println("Connected read replica " + url.trim());
+      } catch (SQLException se) {
+        // a missing replica only costs read capacity, the primary still serves everything
+        System.err.println("Skipping read replica " + url.trim() + ": " + se.getMessage());
+        replica.close();
+      }
+    }
+    return pools;
+  }
+
+  /**
+   * Leases a primary connection for the duration of {@code work}. Connections that fail
+   * with a connection-level error are dropped from the pool instead of being reused.
+   */
+  static <T> T withConnection(SqlWork<T> work) throws SQLException {
+    return withConnection(pool, work);
+  }
 
+  /**
+   * Like {@link #withConnection(SqlWork)} but for read-only work, which goes to a
+   * replica unless {@code consistencyKey} was written within the read-your-writes window.
+   */
+  static <T> T withReadConnection(String consistencyKey, SqlWork<T> work) throws SQLException {
+    ReplicaRouter.Replica replica = replicas.pick(consistencyKey);
+    if (replica == null) {
+      return withConnection(pool, work);
+    }
+    ConnectionPool.Lease lease;
     try {
-      PreparedStatement pstm = conn.prepareStatement(stm);
-      for (int i = 0; i < args.length; i++) {
-        pstm.setString(i + 1, args[i]);
+      lease = replica.pool.borrow();
+    } catch (SQLException se) {
+      replicas.markDown(replica);
+      return withConnection(pool, work);
+    }
+    try (ConnectionPool.Lease leased = lease) {
+      try {
+        return work.run(leased);
+      } catch (SQLException se) {
+        leased.evictIfBroken(se);
+        throw se;
       }
-      ResultSet result = pstm.executeQuery();
-      return result;
+    }
+  }
+
+  /** Pins reads for {@code consistencyKey} to the primary for the read-your-writes window. */
+  public static void recordWrite(String consistencyKey) {
+    replicas.recordWrite(consistencyKey);
+  }
+
+  /** True while reads for {@code consistencyKey} are pinned to the primary after a write. */
+  static boolean wroteRecently(String consistencyKey) {
+    return replicas.wroteRecently(consistencyKey);
+  }
+
+  private static <T> T withConnection(ConnectionPool target, SqlWork<T> work) throws SQLException {
+    try (ConnectionPool.Lease lease = target.borrow()) {
+      try {
+        return work.run(lease);
+      } catch (SQLException se) {
+        lease.evictIfBroken(se);
+        throw se;
+      }
+    }
+  }
+
+  /**
+   * Binds each argument with the setter matching its Java type, so ints, longs,
+   * booleans and timestamps reach the server as native values instead of strings.
+   */
+  static void bind(PreparedStatement pstm, Object[] args) throws SQLException {
+    for (int i = 0; i < args.length; i++) {
+      int index = i + 1;
+      Object arg = args[i];
+      if (arg == null) {
+        pstm.setNull(index, Types.NULL);
+      } else if (arg instanceof String) {
+        pstm.setString(index, (String) arg);
+      } else if (arg instanceof Integer) {
+        pstm.setInt(index, (Integer) arg);
+      } else if (arg instanceof Long) {
+        pstm.setLong(index, (Long) arg);
+      } else if (arg instanceof Boolean) {
+        pstm.setBoolean(index, (Boolean) arg);
+      } else if (arg instanceof Timestamp) {
+        pstm.setTimestamp(index, (Timestamp) arg);
+      } else if (arg instanceof SqlNull) {
+        pstm.setNull(index, ((SqlNull) arg).sqlType);
+      } else {
+        pstm.setObject(index, arg);
+      }
+    }
+  }
+
+  // Copies the rows so the statement and connection can go back to the pool
+  private static CachedRowSet detach(ResultSet result) throws SQLException {
+    CachedRowSet rows = RowSetProvider.newFactory().createCachedRowSet();
+    rows.populate(result);
+    return rows;
+  }
+
+  private static long rowCount(CachedRowSet rows) {
+    return rows.size();
+  }
+
+  /**
+   * Runs {@code work} on one connection inside a single transaction. It commits
+   * when the work returns and rolls back if it throws.
+   */
+  public static <T> T inTransaction(UnitOfWork<T> work) throws SQLException {
+    return withConnection(lease -> {
+      Connection conn = lease.connection();
+      conn.setAutoCommit(false);
+      try {
+        Transaction tx = new Transaction(lease);
+        T result = work.run(tx);
+        conn.commit();
+        // readers that ran between the statements and the commit may have cached old rows
+        invalidateAll(tx.writeStatements());
+        return result;
+      } catch (SQLException | RuntimeException e) {
+        conn.rollback();
+        throw e;
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    });
+  }
+
+  /** True when the statement failed because a row with the same unique key already exists. */
+  public static boolean isDuplicateKey(SQLException se) {
+    return se instanceof SQLIntegrityConstraintViolationException && se.getErrorCode() == ER_DUP_ENTRY;
+  }
+
+  /**
+   * Streams the rows of a query through {@code mapper} into {@code sink} without
+   * buffering the whole result. The result set is closed before this returns.
+   */
+  public static <T> void forEachRow(String stm, RowMapper<T> mapper, Consumer<? super T> sink, Object... args)
+      throws SQLException {
+    withConnection(lease -> streamRows(lease, stm, mapper, sink, args));
+  }
+
+  public static <T> List<T> queryList(String stm, RowMapper<T> mapper, Object... args) throws SQLException {
+    List<T> rows = new ArrayList<>();
+    forEachRow(stm, mapper, rows::add, args);
+    return rows;
+  }
+
+  /** Returns the first mapped row, or null when the query matches nothing. */
+  public static <T> T queryOne(String stm, RowMapper<T> mapper, Object... args) throws SQLException {
+    return withConnection(lease -> firstRow(lease, stm, mapper, args));
+  }
+
+  /**
+   * Read-only variant of {@link #forEachRow} that may run on a replica, see
+   * {@link #recordWrite} for the meaning of {@code consistencyKey} (null for none).
+   */
+  public static <T> void forEachRowReadOnly(String consistencyKey, String stm, RowMapper<T> mapper,
+      Consumer<? super T> sink, Object... args) throws SQLException {
+    withReadConnection(consistencyKey, lease -> streamRows(lease, stm, mapper, sink, args));
+  }
+
+  public static <T> List<T> queryListReadOnly(String consistencyKey, String stm, RowMapper<T> mapper,
+      Object... args) throws SQLException {
+    List<T> rows = new ArrayList<>();
+    forEachRowReadOnly(consistencyKey, stm, mapper, rows::add, args);
+    return rows;
+  }
+
+  public static <T> T queryOneReadOnly(String consistencyKey, String stm, RowMapper<T> mapper, Object... args)
+      throws SQLException {
+    return withReadConnection(consistencyKey, lease -> firstRow(lease, stm, mapper, args));
+  }
+
+  private static <T> Void streamRows(ConnectionPool.Lease lease, String stm, RowMapper<T> mapper,
+      Consumer<? super T> sink, Object[] args) throws SQLException {
+    PreparedStatement pstm = lease.prepare(stm);
+    bind(pstm, args);
+    pstm.setFetchSize(STREAM_FETCH_SIZE);
+    try {
+      SqlMetrics.time(stm, args, () -> {
+        long rows = 0;
+        try (ResultSet result = pstm.executeQuery()) {
+          while (result.next()) {
+            sink.accept(mapper.map(result));
+            rows++;
+          }
+        }
+        return rows;
+      }, rows -> rows);
+    } finally {
+      pstm.setFetchSize(0);
+    }
+    return null;
+  }
+
+  private static <T> T firstRow(ConnectionPool.Lease lease, String stm, RowMapper<T> mapper, Object[] args)
+      throws SQLException {
+    PreparedStatement pstm = lease.prepare(stm);
+    bind(pstm, args);
+    return SqlMetrics.time(stm, args, () -> {
+      try (ResultSet result = pstm.executeQuery()) {
+        return result.next() ? mapper.map(result) : null;
+      }
+    }, row -> 1);
+  }
+
+  /**
+   * Like {@link #queryListReadOnly} but served from the query cache when enabled.
+   * The returned list is shared and unmodifiable.
+   */
+  public static <T> List<T> queryListCached(String consistencyKey, String stm, RowMapper<T> mapper,
+      Object... args) throws SQLException {
+    return cached(stm, args,
+        () -> Collections.unmodifiableList(queryListReadOnly(consistencyKey, stm, mapper, args)));
+  }
+
+  /**
+   * Caches whatever {@code loader} returns under {@code stm}/{@code args}; the
+   * tables named in {@code stm} decide when the entry is invalidated.
+   */
+  static <T> T cached(String stm, Object[] args, QueryCache.Loader<T> loader) throws SQLException {
+    QueryCache cache = queryCache;
+    return cache != null ? cache.get(stm, args, loader) : loader.load();
+  }
+
+  static void invalidate(String stm) {
+    QueryCache cache = queryCache;
+    if (cache != null) {
+      cache.invalidate(stm);
+    }
+  }
+
+  private static void invalidateAll(Collection<String> statements) {
+    for (String stm : statements) {
+      invalidate(stm);
+    }
+  }
+
+  /** Runs an INSERT/UPDATE/DELETE and returns the affected row count. */
+  public static int update(String stm, Object... args) throws SQLException {
+    try {
+      return withConnection(lease -> {
+        PreparedStatement pstm = lease.prepare(stm);
+        bind(pstm, args);
+        return SqlMetrics.time(stm, args, pstm::executeUpdate, count -> count);
+      });
+    } finally {
+      invalidate(stm);
+    }
+  }
+
+  /** Runs an INSERT and returns the generated key, or null if nothing was inserted. */
+  public static Integer insertReturningKey(String stm, Object... args) throws SQLException {
+    try {
+      return insertReturningKeyUncached(stm, args);
+    } finally {
+      invalidate(stm);
+    }
+  }
+
+  private static Integer insertReturningKeyUncached(String stm, Object[] args) throws SQLException {
+    return withConnection(lease -> {
+      PreparedStatement pstm = lease.prepareReturningKeys(stm);
+      bind(pstm, args);
+      return SqlMetrics.time(stm, args, () -> {
+        int affectedRows = pstm.executeUpdate();
+        if (affectedRows == 0) {
+          return null;
+        }
+        try (ResultSet keys = pstm.getGeneratedKeys()) {
+          if (keys.next()) {
+            return keys.getInt(1);
+          }
+        }
+        return null;
+      }, key -> 1);
+    });
+  }
+
+  public static ResultSet queryDB(String stm, Object... args) {
+
+    try {
+      return withConnection(lease -> {
+        PreparedStatement pstm = lease.prepare(stm);
+        bind(pstm, args);
+        return SqlMetrics.time(stm, args, () -> {
+          try (ResultSet result = pstm.executeQuery()) {
+            return detach(result);
+          }
+        }, Mariadb::rowCount);
+      });
     } catch (SQLException se) {
-      Mariadb.exit();
       se.printStackTrace();
       return null;
     } catch (Exception e) {
@@ -125,10 +428,15 @@ public class Mariadb {
 
   public static ResultSet queryDB(String stm) {
     try {
-      ResultSet result = stmt.executeQuery(stm);
-      return result;
+      return withConnection(lease -> {
+        PreparedStatement pstm = lease.prepare(stm);
+        return SqlMetrics.time(stm, null, () -> {
+          try (ResultSet result = pstm.executeQuery()) {
+            return detach(result);
+          }
+        }, Mariadb::rowCount);
+      });
     } catch (SQLException se) {
-      Mariadb.exit();
       se.printStackTrace();
       return null;
     } catch (Exception e) {
@@ -139,30 +447,64 @@ public class Mariadb {
 
   }
 
-  private static void exit() {
+  public static void shutdown() {
 
     System.out.println("Exited");
-    try {
-      if (conn != null) {
-        conn.close();
-      }
-    } catch (SQLException se) {
-      se.printStackTrace();
-    } // end finally try
+    if (progressArchiver != null) {
+      progressArchiver.close();
+      progressArchiver = null;
+    }
+    // pending progress needs the primary pool, so it is flushed first
+    if (progressBuffer != null) {
+      progressBuffer.close();
+      progressBuffer = null;
+    }
+    replicas.close();
+    if (pool != null) {
+      pool.close();
+    }
+  }
+
+  public static String poolStats() {
+    return (pool != null ? pool.toString() : "pool=primary closed") + "\n" + replicas;
+  }
+
+  static ProgressWriteBuffer progressBuffer() {
+    return progressBuffer;
+  }
+
+  public static String progressBufferStats() {
+    return progressBuffer != null ? progressBuffer.toString() : "progressBuffer disabled";
+  }
+
+  public static String sqlStats() {
+    return SqlMetrics.stats();
+  }
+
+  public static String progressArchiverStats() {
+    return progressArchiver != null ? progressArchiver.toString() : "progressArchiver disabled";
+  }
+
+  public static String batchLoaderStats() {
+    return BatchLoader.stats();
+  }
+
+  public static String queryCacheStats() {
+    QueryCache cache = queryCache;
+    return cache != null ? cache.toString() : "queryCache disabled";
+  }
+
+  public static String statementCacheStats() {
+    return StatementCache.stats();
   }
 
-  public static boolean insert(String stm, String[] args) {
+  public static boolean insert(String stm, Object... args) {
     try {
-      PreparedStatement pstm = conn.prepareStatement(stm);
-      for (int i = 0; i < args.length; i++) {
-        pstm.setString(i + 1, args[i]);
-      }
-      pstm.executeUpdate();
+      update(stm, args);
     }
 
     catch (SQLException se) {
       se.printStackTrace();
-      Mariadb.exit();
       return false;
     } catch (Exception e) {
       e.printStackTrace();
@@ -173,16 +515,11 @@ public class Mariadb {
     return true;
   }
 
-  public static boolean execute(String stm, String[] args) {
+  public static boolean execute(String stm, Object... args) {
     try {
-      PreparedStatement pstm = conn.prepareStatement(stm);
-      for (int i = 0; i < args.length; i++) {
-        pstm.setString(i + 1, args[i]);
-      }
-      pstm.executeUpdate();
+      update(stm, args);
     } catch (SQLException se) {
       se.printStackTrace();
-      Mariadb.exit();
       return false;
     } catch (Exception e) {
       e.printStackTrace();
@@ -191,29 +528,16 @@ public class Mariadb {
     return true;
   }
 
-  public static Integer insertAndReturnId(String stm, String[] args) {
+  public static Integer insertAndReturnId(String stm, Object... args) {
     try {
-      PreparedStatement pstm = conn.prepareStatement(stm, Statement.RETURN_GENERATED_KEYS);
-      for (int i = 0; i < args.length; i++) {
-        pstm.setString(i + 1, args[i]);
-      }
-      int affectedRows = pstm.executeUpdate();
-      if (affectedRows == 0) {
-        return null;
-      }
-      ResultSet keys = pstm.getGeneratedKeys();
-      if (keys.next()) {
-        return keys.getInt(1);
-      }
+      return insertReturningKey(stm, args);
     } catch (SQLException se) {
       se.printStackTrace();
-      Mariadb.exit();
       return null;
     } catch (Exception e) {
       e.printStackTrace();
       return null;
     }
-    return null;
   }
 
 };
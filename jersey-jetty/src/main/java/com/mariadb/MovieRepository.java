@@ -0,0 +1,113 @@
+package com.mariadb;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Data access for the MOVIE table.
+ */
+public class MovieRepository {
+
+  public static final RowMapper<Movie> MAPPER = result -> new Movie(result.getInt("id"), result.getString("name"),
+      result.getString("description"), result.getInt("genre"), result.getInt("year"),
+      result.getString("videoPath"), result.getString("thumbnailPath"));
+
+  private static final String COLUMNS = "id, name, description, genre, year, videoPath, thumbnailPath";
+  // catalog reads may go to a replica, except right after a CMS edit
+  private static final String CONSISTENCY_KEY = "catalog";
+
+  // concurrent lookups by title (stream and thumbnail requests) share one name IN (...) query
+  private static final BatchLoader<String, Movie> nameLookups = new BatchLoader<>("movieByName",
+      MovieRepository::findAllByName);
+
+  public void forEach(Consumer<? super Movie> sink) throws SQLException {
+    Mariadb.forEachRowReadOnly(CONSISTENCY_KEY, "SELECT " + COLUMNS + " FROM MOVIE", MAPPER, sink);
+  }
+
+  public List<Movie> findAll() throws SQLException {
+    return Mariadb.queryListCached(CONSISTENCY_KEY, "SELECT " + COLUMNS + " FROM MOVIE", MAPPER);
+  }
+
+  /** Keyset page: up to {@code limit} movies with an id greater than {@code afterId}, by id. */
+  public List<Movie> findPage(int afterId, int limit) throws SQLException {
+    return Mariadb.queryListReadOnly(CONSISTENCY_KEY,
+        "SELECT " + COLUMNS + " FROM MOVIE WHERE id > ? ORDER BY id LIMIT ?", MAPPER, afterId, limit);
+  }
+
+  public Movie findById(int id) throws SQLException {
+    return Mariadb.queryOne("SELECT " + COLUMNS + " FROM MOVIE WHERE id = ?", MAPPER, id);
+  }
+
+  public Movie findByName(String name) throws SQLException {
+    return Mariadb.cached("SELECT " + COLUMNS + " FROM MOVIE WHERE name = ?", new Object[] { name },
+        () -> nameLookups.load(name));
+  }
+
+  public String findVideoPathByName(String name) throws SQLException {
+    Movie movie = findByName(name);
+    return movie != null ? movie.getVideoPath() : null;
+  }
+
+  public String findThumbnailPathByName(String name) throws SQLException {
+    Movie movie = findByName(name);
+    return movie != null ? movie.getThumbnailPath() : null;
+  }
+
+  private static Map<String, Movie> findAllByName(List<String> names) throws SQLException {
+    int rows = BatchLoader.paddedSize(names.size());
+    Object[] args = new Object[rows];
+    StringBuilder sql = new StringBuilder("SELECT " + COLUMNS + " FROM MOVIE WHERE name IN (");
+    for (int i = 0; i < rows; i++) {
+      sql.append(i == 0 ? "?" : ", ?");
+      args[i] = names.get(Math.min(i, names.size() - 1));
+    }
+    sql.append(")");
+    // the column collation is case-insensitive, so a lookup must match the stored name the same way
+    Map<String, Movie> found = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    Mariadb.forEachRowReadOnly(CONSISTENCY_KEY, sql.toString(), MAPPER, movie -> found.put(movie.getName(), movie),
+        args);
+    return found;
+  }
+
+  /**
+   * Inserts a movie and returns it, or null when a movie with that name already
+   * exists.
+   */
+  public Movie create(String name, String description, Integer genre, Integer year, String videoPath,
+      String thumbnailPath) throws SQLException {
+    try {
+      Integer id = Mariadb.insertReturningKey(
+          "INSERT INTO MOVIE(name,description,genre,year,videoPath,thumbnailPath) VALUES(?,?,?,?,?,?)",
+          name, description, genre, year, videoPath, thumbnailPath);
+      if (id == null) {
+        throw new SQLException("Movie insert returned no generated key");
+      }
+      Mariadb.recordWrite(CONSISTENCY_KEY);
+      return new Movie(id, name, description, genre != null ? genre : 0, year != null ? year : 0, videoPath,
+          thumbnailPath);
+    } catch (SQLException se) {
+      if (Mariadb.isDuplicateKey(se)) {
+        return null;
+      }
+      throw se;
+    }
+  }
+
+  public boolean update(int id, String name, String description, Integer genre, String thumbnailPath)
+      throws SQLException {
+    boolean updated = Mariadb.update(
+        "UPDATE MOVIE SET name = ?, description = ?, genre = ?, thumbnailPath = ? WHERE id = ?",
+        name, description, genre, thumbnailPath, id) > 0;
+    Mariadb.recordWrite(CONSISTENCY_KEY);
+    return updated;
+  }
+
+  public boolean delete(int id) throws SQLException {
+    boolean deleted = Mariadb.update("DELETE FROM MOVIE WHERE id = ?", id) > 0;
+    Mariadb.recordWrite(CONSISTENCY_KEY);
+    return deleted;
+  }
+}
@@ -0,0 +1,74 @@
+package com.mariadb;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Data access for the PROFILE table.
+ */
+public class ProfileRepository {
+
+  public static final RowMapper<Profile> MAPPER = result -> new Profile(result.getInt("id"),
+      result.getInt("userId"), result.getString("name"), result.getString("avatarColor"),
+      result.getBoolean("kids"));
+
+  private static final String COLUMNS = "id, userId, name, avatarColor, kids";
+
+  /** Read-your-writes key shared by all profiles of a user. */
+  static String consistencyKey(int userId) {
+    return "user:" + userId;
+  }
+
+  public void forEachByUser(int userId, Consumer<? super Profile> sink) throws SQLException {
+    Mariadb.forEachRowReadOnly(consistencyKey(userId), "SELECT " + COLUMNS + " FROM PROFILE WHERE userId = ?",
+        MAPPER, sink, userId);
+  }
+
+  public List<Profile> findByUser(int userId) throws SQLException {
+    return Mariadb.queryListCached(consistencyKey(userId), "SELECT " + COLUMNS + " FROM PROFILE WHERE userId = ?",
+        MAPPER, userId);
+  }
+
+  public Profile findById(int id) throws SQLException {
+    return Mariadb.queryOne("SELECT " + COLUMNS + " FROM PROFILE WHERE id = ?", MAPPER, id);
+  }
+
+  /**
+   * Inserts a profile and returns it, or null when the user already has a profile
+   * with that name.
+   */
+  public Profile create(int userId, String name, String avatarColor, boolean kids) throws SQLException {
+    try {
+      Integer id = Mariadb.insertReturningKey("INSERT INTO PROFILE(userId,name,avatarColor,kids) VALUES(?,?,?,?)",
+          userId, name, avatarColor, kids);
+      if (id == null) {
+        throw new SQLException("Profile insert returned no generated key");
+      }
+      Mariadb.recordWrite(consistencyKey(userId));
+      return new Profile(id, userId, name, avatarColor, kids);
+    } catch (SQLException se) {
+      if (Mariadb.isDuplicateKey(se)) {
+        return null;
+      }
+      throw se;
+    }
+  }
+
+  public boolean update(Profile profile) throws SQLException {
+    boolean updated = Mariadb.update("UPDATE PROFILE SET name = ?, avatarColor = ?, kids = ? WHERE id = ?",
+        profile.getName(), profile.getAvatarColor(), profile.isKids(), profile.getId()) > 0;
+    Mariadb.recordWrite(consistencyKey(profile.getUserId()));
+    return updated;
+  }
+
+  public boolean delete(int id) throws SQLException {
+    Profile existing = findById(id);
+    if (existing == null) {
+      return false;
+    }
+    boolean deleted = Mariadb.update("DELETE FROM PROFILE WHERE id = ?", id) > 0;
+    Mariadb.recordWrite(consistencyKey(existing.getUserId()));
+    return deleted;
+  }
+}
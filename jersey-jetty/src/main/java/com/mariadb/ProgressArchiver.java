@@ -0,0 +1,168 @@
+package com.mariadb;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Year;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background job moving cold rows from WATCH_PROGRESS to WATCH_PROGRESS_ARCHIVE.
+ *
+ * A row is archived when it has not been updated for
+ * {@code progress.archive.staleDays}, or sooner
+ * ({@code progress.archive.abandonedDays}) when playback stopped within the
+ * first {@code progress.archive.abandonedPositionMs}. The hot table is walked in
+ * primary key ranges, so it needs no index on updatedAt that every heartbeat
+ * would have to maintain. Each range is copied and deleted in one transaction.
+ *
+ * The archive is range partitioned by year of archival; the job adds the
+ * partitions for this and next year as needed.
+ */
+class ProgressArchiver {
+
+  static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("progress.archive.enabled", "true"));
+  static final long INTERVAL_MINUTES = Long.getLong("progress.archive.intervalMinutes", 60L);
+  static final int STALE_DAYS = Integer.getInteger("progress.archive.staleDays", 90);
+  static final int ABANDONED_DAYS = Integer.getInteger("progress.archive.abandonedDays", 14);
+  static final long ABANDONED_POSITION_MS = Long.getLong("progress.archive.abandonedPositionMs", 120000L);
+
+  private static final int ID_RANGE = 5000;
+  // pause between ranges so archival does not compete with heartbeats for row locks
+  private static final long RANGE_PAUSE_MS = 50;
+  private static final String LOCK_NAME = "watch_progress_archiver";
+  static final int REASON_ABANDONED = 1;
+  static final int REASON_STALE = 2;
+
+  private static final String COLD = "(updatedAt < ? OR (positionMs < ? AND updatedAt < ?))";
+
+  private final ScheduledExecutorService scheduler;
+  private final AtomicLong runs = new AtomicLong();
+  private final AtomicLong archived = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private volatile long lastRunMs = 0;
+
+  ProgressArchiver() {
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "progress-archiver");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  void start() {
+    scheduler.scheduleWithFixedDelay(this::runQuietly, 1, INTERVAL_MINUTES, TimeUnit.MINUTES);
+  }
+
+  void close() {
+    scheduler.shutdownNow();
+  }
+
+  private void runQuietly() {
+    try {
+      run();
+    } catch (SQLException | RuntimeException e) {
+      failures.incrementAndGet();
+      e.printStackTrace();
+    }
+  }
+
+  /** One archival pass; skipped when another server holds the lock. */
+  void run() throws SQLException {
+    // the advisory lock belongs to this connection, which is held for the whole pass
+    Mariadb.withConnection(lease -> {
+      if (advisoryLock(lease, "SELECT GET_LOCK(?, 0)") != 1) {
+        return null;
+      }
+      try {
+        long start = System.currentTimeMillis();
+        ensurePartitions();
+        long moved = archiveRanges();
+        runs.incrementAndGet();
+        lastRunMs = System.currentTimeMillis() - start;
+        if (moved > 0) {
+          System.out.println("Archived " + moved + " watch progress rows in " + lastRunMs + "ms");
+        }
+      } finally {
+        advisoryLock(lease, "SELECT RELEASE_LOCK(?)");
+      }
+      return null;
+    });
+  }
+
+  private static int advisoryLock(ConnectionPool.Lease lease, String sql) throws SQLException {
+    PreparedStatement pstm = lease.prepare(sql);
+    pstm.setString(1, LOCK_NAME);
+    try (ResultSet result = pstm.executeQuery()) {
+      return result.next() ? result.getInt(1) : 0;
+    }
+  }
+
+  private long archiveRanges() throws SQLException {
+    Long maxId = Mariadb.queryOne("SELECT MAX(id) FROM WATCH_PROGRESS", result -> result.getLong(1));
+    if (maxId == null) {
+      return 0;
+    }
+    long now = System.currentTimeMillis();
+    Timestamp staleBefore = new Timestamp(now - TimeUnit.DAYS.toMillis(STALE_DAYS));
+    Timestamp abandonedBefore = new Timestamp(now - TimeUnit.DAYS.toMillis(ABANDONED_DAYS));
+    long total = 0;
+    for (long from = 0; from < maxId; from += ID_RANGE) {
+      long lo = from;
+      long hi = from + ID_RANGE;
+      // the INSERT ... SELECT locks the rows it copies, so a concurrent heartbeat
+      // either lands before (and the row is no longer cold) or after the delete
+      int moved = Mariadb.inTransaction(tx -> {
+        int copied = tx.update("INSERT INTO WATCH_PROGRESS_ARCHIVE "
+            + "(profileId, movieId, positionMs, updatedAt, archivedAt, reason) "
+            + "SELECT profileId, movieId, positionMs, updatedAt, NOW(), "
+            + "CASE WHEN updatedAt < ? THEN " + REASON_STALE + " ELSE " + REASON_ABANDONED + " END "
+            + "FROM WATCH_PROGRESS WHERE id > ? AND id <= ? AND " + COLD,
+            staleBefore, lo, hi, staleBefore, ABANDONED_POSITION_MS, abandonedBefore);
+        if (copied == 0) {
+          return 0;
+        }
+        return tx.update("DELETE FROM WATCH_PROGRESS WHERE id > ? AND id <= ? AND " + COLD,
+            lo, hi, staleBefore, ABANDONED_POSITION_MS, abandonedBefore);
+      });
+      total += moved;
+      archived.addAndGet(moved);
+      if (moved > 0) {
+        try {
+          Thread.sleep(RANGE_PAUSE_MS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+    return total;
+  }
+
+  // splits the catch-all partition so every year gets its own, cheap to drop later
+  private void ensurePartitions() throws SQLException {
+    int year = Year.now().getValue();
+    for (int y = year; y <= year + 1; y++) {
+      Integer exists = Mariadb.queryOne("SELECT COUNT(*) FROM information_schema.PARTITIONS "
+          + "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'WATCH_PROGRESS_ARCHIVE' AND PARTITION_NAME = ?",
+          result -> result.getInt(1), "p" + y);
+      if (exists != null && exists > 0) {
+        continue;
+      }
+      Mariadb.update("ALTER TABLE WATCH_PROGRESS_ARCHIVE REORGANIZE PARTITION pmax INTO ("
+          + "PARTITION p" + y + " VALUES LESS THAN (" + (y + 1) + "), "
+          + "PARTITION pmax VALUES LESS THAN MAXVALUE)");
+      System.out.println("Added partition p" + y + " to WATCH_PROGRESS_ARCHIVE");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("progressArchiver runs=%d archived=%d failures=%d lastRunMs=%d", runs.get(),
+        archived.get(), failures.get(), lastRunMs);
+  }
+}
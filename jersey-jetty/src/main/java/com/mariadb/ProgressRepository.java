@@ -0,0 +1,191 @@
+package com.mariadb;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * MariaDB {@link ProgressStore} on the WATCH_PROGRESS table.
+ *
+ * Upserts go through the write-behind {@link ProgressWriteBuffer} when it is
+ * enabled; reads merge buffered positions over what is stored.
+ */
+public class ProgressRepository implements ProgressStore {
+
+  public static final RowMapper<WatchProgress> MAPPER = result -> new WatchProgress(result.getInt("profileId"),
+      result.getInt("movieId"), result.getLong("positionMs"), result.getTimestamp("updatedAt"));
+
+  private static final String COLUMNS = "profileId, movieId, positionMs, updatedAt";
+
+  // concurrent single-entry lookups are answered by one (profileId, movieId) IN (...) query
+  private static final BatchLoader<Long, WatchProgress> pointLookups = new BatchLoader<>("progress",
+      ProgressRepository::findAll);
+
+  /** Read-your-writes key for a profile, so resume positions never go backwards. */
+  static String consistencyKey(int profileId) {
+    return "profile:" + profileId;
+  }
+
+  public void forEachByProfile(int profileId, Consumer<? super WatchProgress> sink) throws SQLException {
+    ProgressWriteBuffer buffer = Mariadb.progressBuffer();
+    if (buffer == null) {
+      Mariadb.forEachRowReadOnly(consistencyKey(profileId),
+          "SELECT " + COLUMNS + " FROM WATCH_PROGRESS WHERE profileId = ?", MAPPER, sink, profileId);
+      return;
+    }
+    Map<Integer, WatchProgress> pending = buffer.getByProfile(profileId);
+    Mariadb.forEachRowReadOnly(consistencyKey(profileId),
+        "SELECT " + COLUMNS + " FROM WATCH_PROGRESS WHERE profileId = ?", MAPPER, stored -> {
+          WatchProgress newer = pending.remove(stored.movieId);
+          sink.accept(newer != null ? newer : stored);
+        }, profileId);
+    for (WatchProgress entry : pending.values()) {
+      sink.accept(entry);
+    }
+  }
+
+  /**
+   * Keyset page of a profile's progress: up to {@code limit} entries with a movie
+   * id greater than {@code afterMovieId}, by movie id. Buffered positions are
+   * merged in order.
+   */
+  @Override
+  public List<WatchProgress> findPageByProfile(int profileId, int afterMovieId, int limit) throws SQLException {
+    List<WatchProgress> page = new ArrayList<>();
+    ProgressWriteBuffer buffer = Mariadb.progressBuffer();
+    TreeMap<Integer, WatchProgress> pending = new TreeMap<>();
+    if (buffer != null) {
+      pending.putAll(buffer.getByProfile(profileId));
+    }
+    Iterator<WatchProgress> buffered = pending.tailMap(afterMovieId, false).values().iterator();
+    WatchProgress[] next = { buffered.hasNext() ? buffered.next() : null };
+    Mariadb.forEachRowReadOnly(consistencyKey(profileId),
+        "SELECT " + COLUMNS + " FROM WATCH_PROGRESS WHERE profileId = ? AND movieId > ? ORDER BY movieId LIMIT ?",
+        MAPPER, stored -> {
+          while (next[0] != null && next[0].movieId < stored.movieId && page.size() < limit) {
+            page.add(next[0]);
+            next[0] = buffered.hasNext() ? buffered.next() : null;
+          }
+          if (page.size() >= limit) {
+            return;
+          }
+          if (next[0] != null && next[0].movieId == stored.movieId) {
+            page.add(next[0]);
+            next[0] = buffered.hasNext() ? buffered.next() : null;
+          } else {
+            page.add(stored);
+          }
+        }, profileId, afterMovieId, limit);
+    // every stored row up to the limit was seen, so the remaining buffered ones come after them
+    while (next[0] != null && page.size() < limit) {
+      page.add(next[0]);
+      next[0] = buffered.hasNext() ? buffered.next() : null;
+    }
+    return page;
+  }
+
+  @Override
+  public List<WatchProgress> findByProfile(int profileId) throws SQLException {
+    List<WatchProgress> entries = new ArrayList<>();
+    forEachByProfile(profileId, entries::add);
+    return entries;
+  }
+
+  @Override
+  public List<WatchProgress> findHistoryByProfile(int profileId) throws SQLException {
+    List<WatchProgress> entries = findByProfile(profileId);
+    Map<Integer, WatchProgress> archived = new HashMap<>();
+    Mariadb.forEachRowReadOnly(consistencyKey(profileId),
+        "SELECT " + COLUMNS + " FROM WATCH_PROGRESS_ARCHIVE WHERE profileId = ? ORDER BY archivedAt", MAPPER,
+        entry -> archived.put(entry.movieId, entry), profileId);
+    for (WatchProgress entry : entries) {
+      archived.remove(entry.movieId);
+    }
+    entries.addAll(archived.values());
+    return entries;
+  }
+
+  @Override
+  public WatchProgress find(int profileId, int movieId) throws SQLException {
+    ProgressWriteBuffer buffer = Mariadb.progressBuffer();
+    if (buffer != null) {
+      WatchProgress pending = buffer.get(profileId, movieId);
+      if (pending != null) {
+        return pending;
+      }
+    }
+    return pointLookups.load(ProgressWriteBuffer.key(profileId, movieId));
+  }
+
+  private static Map<Long, WatchProgress> findAll(List<Long> keys) throws SQLException {
+    // the batch goes to the primary if any of its profiles has just written
+    String consistencyKey = null;
+    int rows = BatchLoader.paddedSize(keys.size());
+    Object[] args = new Object[rows * 2];
+    StringBuilder sql = new StringBuilder(
+        "SELECT " + COLUMNS + " FROM WATCH_PROGRESS WHERE (profileId, movieId) IN (");
+    for (int i = 0; i < rows; i++) {
+      long key = keys.get(Math.min(i, keys.size() - 1));
+      int profileId = (int) (key >>> 32);
+      if (consistencyKey == null && Mariadb.wroteRecently(consistencyKey(profileId))) {
+        consistencyKey = consistencyKey(profileId);
+      }
+      sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+      args[i * 2] = profileId;
+      args[i * 2 + 1] = (int) key;
+    }
+    sql.append(")");
+    Map<Long, WatchProgress> found = new HashMap<>();
+    Mariadb.forEachRowReadOnly(consistencyKey, sql.toString(), MAPPER,
+        entry -> found.put(ProgressWriteBuffer.key(entry.profileId, entry.movieId), entry), args);
+    return found;
+  }
+
+  @Override
+  public void upsert(int profileId, int movieId, long positionMs) throws SQLException {
+    ProgressWriteBuffer buffer = Mariadb.progressBuffer();
+    if (buffer != null && buffer.put(profileId, movieId, positionMs)) {
+      return;
+    }
+    Mariadb.update("INSERT INTO WATCH_PROGRESS (profileId, movieId, positionMs) VALUES (?, ?, ?) "
+        + "ON DUPLICATE KEY UPDATE positionMs = VALUES(positionMs), updatedAt = CURRENT_TIMESTAMP",
+        profileId, movieId, positionMs);
+    Mariadb.recordWrite(consistencyKey(profileId));
+  }
+
+  @Override
+  public boolean delete(int profileId, int movieId) throws SQLException {
+    ProgressWriteBuffer buffer = Mariadb.progressBuffer();
+    boolean buffered = buffer != null && buffer.remove(profileId, movieId);
+    boolean deleted = Mariadb.update("DELETE FROM WATCH_PROGRESS WHERE profileId = ? AND movieId = ?", profileId,
+        movieId) > 0 || buffered;
+    Mariadb.recordWrite(consistencyKey(profileId));
+    return deleted;
+  }
+
+  /**
+   * Writes {@code count} buffered rows starting at {@code from} in one multi-row
+   * upsert. Keys are encoded as in {@link ProgressWriteBuffer#key}.
+   */
+  static void upsertRows(long[] keys, long[] positions, long[] updatedAt, int from, int count) throws SQLException {
+    StringBuilder sql = new StringBuilder(
+        "INSERT INTO WATCH_PROGRESS (profileId, movieId, positionMs, updatedAt) VALUES ");
+    Object[] args = new Object[count * 4];
+    for (int i = 0; i < count; i++) {
+      long key = keys[from + i];
+      sql.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+      args[i * 4] = (int) (key >>> 32);
+      args[i * 4 + 1] = (int) key;
+      args[i * 4 + 2] = positions[from + i];
+      args[i * 4 + 3] = new Timestamp(updatedAt[from + i]);
+    }
+    sql.append(" ON DUPLICATE KEY UPDATE positionMs = VALUES(positionMs), updatedAt = VALUES(updatedAt)");
+    Mariadb.update(sql.toString(), args);
+  }
+}
@@ -0,0 +1,38 @@
+package com.mariadb;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Storage of watch progress entries, one per (profileId, movieId).
+ *
+ * Selected at startup with {@code -Dprogress.store=mariadb|cassandra|memory};
+ * all implementations surface storage failures as {@link SQLException} so the
+ * endpoints handle them the same way.
+ */
+public interface ProgressStore {
+
+  List<WatchProgress> findByProfile(int profileId) throws SQLException;
+
+  /** Up to {@code limit} entries of the profile with a movie id greater than {@code afterMovieId}, by movie id. */
+  List<WatchProgress> findPageByProfile(int profileId, int afterMovieId, int limit) throws SQLException;
+
+  /**
+   * Like {@link #findByProfile} but also returns entries that were moved out of
+   * the hot set (most recent archived copy, where no live entry exists).
+   */
+  default List<WatchProgress> findHistoryByProfile(int profileId) throws SQLException {
+    return findByProfile(profileId);
+  }
+
+  /** Returns the entry or null. */
+  WatchProgress find(int profileId, int movieId) throws SQLException;
+
+  void upsert(int profileId, int movieId, long positionMs) throws SQLException;
+
+  boolean delete(int profileId, int movieId) throws SQLException;
+
+  /** Releases connections or sessions held by the store. */
+  default void close() {
+  }
+}
@@ -0,0 +1,369 @@
+package com.mariadb;
+
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind buffer for watch progress heartbeats.
+ *
+ * Players report their position every few seconds and only the latest position
+ * per (profileId, movieId) matters, so positions are kept in memory and written
+ * to WATCH_PROGRESS with multi-row upserts once {@code progress.buffer.flushSize}
+ * entries are pending or every {@code progress.buffer.flushMs}. An entry stays
+ * readable here until the flush that wrote it has committed.
+ *
+ * Entries are striped by profile, so all buffered progress of one profile is
+ * found under a single stripe lock. Each stripe is an open-addressing table keyed
+ * by {@code profileId << 32 | movieId}.
+ */
+class ProgressWriteBuffer {
+
+  static final int FLUSH_SIZE = Integer.getInteger("progress.buffer.flushSize", 512);
+  static final long FLUSH_MS = Long.getLong("progress.buffer.flushMs", 1000L);
+  // past this many pending entries (e.g. while the database is down) heartbeats are written through
+  static final int MAX_ENTRIES = Integer.getInteger("progress.buffer.maxEntries", 100000);
+
+  private static final int STRIPES = 16;
+  private static final int MAX_ROWS_PER_STATEMENT = 128;
+
+  /** Linear-probing table; slots with key 0 are empty since ids start at 1. */
+  private static final class Stripe {
+    long[] keys = new long[64];
+    long[] positions = new long[64];
+    long[] updatedAt = new long[64];
+    long[] seqs = new long[64];
+    int size = 0;
+
+    int slotOf(long key) {
+      int mask = keys.length - 1;
+      for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+        if (keys[slot] == key) {
+          return slot;
+        }
+        if (keys[slot] == 0) {
+          return -1;
+        }
+      }
+    }
+
+    /** Returns true if the key was not buffered yet. */
+    boolean put(long key, long position, long time, long seq) {
+      if ((size + 1) * 4 > keys.length * 3) {
+        resize();
+      }
+      int mask = keys.length - 1;
+      int slot = hash(key) & mask;
+      while (keys[slot] != 0 && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      boolean added = keys[slot] == 0;
+      keys[slot] = key;
+      positions[slot] = position;
+      updatedAt[slot] = time;
+      seqs[slot] = seq;
+      if (added) {
+        size++;
+      }
+      return added;
+    }
+
+    // backward-shift deletion keeps probe chains intact without tombstones
+    void removeAt(int slot) {
+      int mask = keys.length - 1;
+      int hole = slot;
+      for (int next = (hole + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+        int home = hash(keys[next]) & mask;
+        if (((next - home) & mask) >= ((next - hole) & mask)) {
+          keys[hole] = keys[next];
+          positions[hole] = positions[next];
+          updatedAt[hole] = updatedAt[next];
+          seqs[hole] = seqs[next];
+          hole = next;
+        }
+      }
+      keys[hole] = 0;
+      size--;
+    }
+
+    private void resize() {
+      long[] oldKeys = keys;
+      long[] oldPositions = positions;
+      long[] oldUpdatedAt = updatedAt;
+      long[] oldSeqs = seqs;
+      int capacity = oldKeys.length * 2;
+      keys = new long[capacity];
+      positions = new long[capacity];
+      updatedAt = new long[capacity];
+      seqs = new long[capacity];
+      size = 0;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != 0) {
+          put(oldKeys[i], oldPositions[i], oldUpdatedAt[i], oldSeqs[i]);
+        }
+      }
+    }
+  }
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+  private final ReentrantLock flushLock = new ReentrantLock();
+  private final ScheduledExecutorService flusher;
+
+  private final AtomicLong buffered = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong writeThrough = new AtomicLong();
+  private final AtomicLong flushedRows = new AtomicLong();
+  private final AtomicLong statements = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong failedFlushes = new AtomicLong();
+
+  ProgressWriteBuffer() {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+    flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "progress-flush");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  void start() {
+    flusher.scheduleWithFixedDelay(this::flushQuietly, FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+  }
+
+  static long key(int profileId, int movieId) {
+    return ((long) profileId << 32) | (movieId & 0xffffffffL);
+  }
+
+  private static int hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+
+  private Stripe stripeOf(int profileId) {
+    return stripes[hash(profileId) & (STRIPES - 1)];
+  }
+
+  /**
+   * Buffers the latest position. Returns false when the buffer is full and the
+   * caller has to write the row itself.
+   */
+  boolean put(int profileId, int movieId, long positionMs) {
+    long key = key(profileId, movieId);
+    Stripe stripe = stripeOf(profileId);
+    synchronized (stripe) {
+      if (stripe.slotOf(key) >= 0) {
+        coalesced.incrementAndGet();
+      } else if (pending.get() >= MAX_ENTRIES) {
+        writeThrough.incrementAndGet();
+        return false;
+      }
+      if (stripe.put(key, positionMs, System.currentTimeMillis(), sequence.incrementAndGet())) {
+        pending.incrementAndGet();
+      }
+    }
+    buffered.incrementAndGet();
+    if (pending.get() >= FLUSH_SIZE && flushRequested.compareAndSet(false, true)) {
+      flusher.execute(() -> {
+        flushRequested.set(false);
+        flushQuietly();
+      });
+    }
+    return true;
+  }
+
+  /** Returns the buffered, not yet flushed position or null. */
+  WatchProgress get(int profileId, int movieId) {
+    Stripe stripe = stripeOf(profileId);
+    synchronized (stripe) {
+      int slot = stripe.slotOf(key(profileId, movieId));
+      if (slot < 0) {
+        return null;
+      }
+      return new WatchProgress(profileId, movieId, stripe.positions[slot], new Timestamp(stripe.updatedAt[slot]));
+    }
+  }
+
+  /** Buffered positions of one profile, keyed by movie id. */
+  Map<Integer, WatchProgress> getByProfile(int profileId) {
+    Map<Integer, WatchProgress> entries = new HashMap<>();
+    Stripe stripe = stripeOf(profileId);
+    synchronized (stripe) {
+      for (int slot = 0; slot < stripe.keys.length; slot++) {
+        long key = stripe.keys[slot];
+        if (key != 0 && (int) (key >>> 32) == profileId) {
+          entries.put((int) key, new WatchProgress(profileId, (int) key, stripe.positions[slot],
+              new Timestamp(stripe.updatedAt[slot])));
+        }
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Drops a buffered position. Waits for a running flush so it cannot write the
+   * row back after the caller deleted it.
+   */
+  boolean remove(int profileId, int movieId) {
+    flushLock.lock();
+    try {
+      Stripe stripe = stripeOf(profileId);
+      synchronized (stripe) {
+        int slot = stripe.slotOf(key(profileId, movieId));
+        if (slot < 0) {
+          return false;
+        }
+        stripe.removeAt(slot);
+        pending.decrementAndGet();
+        return true;
+      }
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /** Writes every pending entry; entries that could not be written stay buffered. */
+  void flush() {
+    flushLock.lock();
+    try {
+      for (Stripe stripe : stripes) {
+        flushStripe(stripe);
+      }
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  private void flushStripe(Stripe stripe) {
+    long[] keys;
+    long[] positions;
+    long[] updatedAt;
+    long[] seqs;
+    int n = 0;
+    synchronized (stripe) {
+      if (stripe.size == 0) {
+        return;
+      }
+      keys = new long[stripe.size];
+      positions = new long[stripe.size];
+      updatedAt = new long[stripe.size];
+      seqs = new long[stripe.size];
+      for (int slot = 0; slot < stripe.keys.length; slot++) {
+        if (stripe.keys[slot] != 0) {
+          keys[n] = stripe.keys[slot];
+          positions[n] = stripe.positions[slot];
+          updatedAt[n] = stripe.updatedAt[slot];
+          seqs[n] = stripe.seqs[slot];
+          n++;
+        }
+      }
+    }
+
+    // statements are cached by SQL text, so only power-of-two row counts are used
+    int done = 0;
+    try {
+      while (done < n) {
+        int rows = Integer.highestOneBit(Math.min(n - done, MAX_ROWS_PER_STATEMENT));
+        try {
+          ProgressRepository.upsertRows(keys, positions, updatedAt, done, rows);
+          statements.incrementAndGet();
+        } catch (SQLException se) {
+          if (rows == 1 || !writeRowByRow(keys, positions, updatedAt, done, rows)) {
+            throw se;
+          }
+        }
+        done += rows;
+      }
+    } catch (SQLException se) {
+      failedFlushes.incrementAndGet();
+      System.err.println("Progress flush failed, " + (n - done) + " entries kept for retry: " + se.getMessage());
+    }
+
+    // recorded before the entries leave the buffer: a reader that no longer finds
+    // them here must already be routed to the primary
+    Set<Integer> profiles = new HashSet<>();
+    for (int i = 0; i < done; i++) {
+      profiles.add((int) (keys[i] >>> 32));
+    }
+    for (int profileId : profiles) {
+      Mariadb.recordWrite(ProgressRepository.consistencyKey(profileId));
+    }
+    synchronized (stripe) {
+      for (int i = 0; i < done; i++) {
+        int slot = stripe.slotOf(keys[i]);
+        // a newer heartbeat that arrived during the write stays pending
+        if (slot >= 0 && stripe.seqs[slot] == seqs[i]) {
+          stripe.removeAt(slot);
+          pending.decrementAndGet();
+        }
+      }
+    }
+    flushedRows.addAndGet(done);
+  }
+
+  // Retries a failed statement one row at a time and drops rows whose profile or
+  // movie no longer exists. Returns false if the failure was not row specific.
+  private boolean writeRowByRow(long[] keys, long[] positions, long[] updatedAt, int from, int rows) {
+    for (int i = from; i < from + rows; i++) {
+      try {
+        ProgressRepository.upsertRows(keys, positions, updatedAt, i, 1);
+        statements.incrementAndGet();
+      } catch (SQLIntegrityConstraintViolationException se) {
+        dropped.incrementAndGet();
+        System.err.println(String.format("Dropping progress for profile %d movie %d: %s", (int) (keys[i] >>> 32),
+            (int) keys[i], se.getMessage()));
+      } catch (SQLException se) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Stops the timer and writes what is still pending. */
+  void close() {
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+    if (pending.get() > 0) {
+      System.err.println("Progress buffer closed with " + pending.get() + " unwritten entries");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "progressBuffer pending=%d buffered=%d coalesced=%d writeThrough=%d flushedRows=%d statements=%d "
+            + "dropped=%d failedFlushes=%d",
+        pending.get(), buffered.get(), coalesced.get(), writeThrough.get(), flushedRows.get(), statements.get(),
+        dropped.get(), failedFlushes.get());
+  }
+}
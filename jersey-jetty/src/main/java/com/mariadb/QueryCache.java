@@ -0,0 +1,280 @@
+package com.mariadb;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of query results keyed by SQL text plus bind arguments.
+ *
+ * Every entry is tagged with the tables its SQL reads. A write through
+ * {@link Mariadb} or {@link Transaction} bumps the generation of the tables it
+ * touches (and of the tables its foreign keys cascade into) and drops their
+ * entries. A read that overlapped such a write is not stored, so an invalidation
+ * can never be undone by a slow reader. Memory is bounded by the total number of
+ * cached rows; entries also expire after {@code db.queryCache.ttlMs}.
+ *
+ * Cached values are shared between requests and must not be modified.
+ */
+class QueryCache {
+
+  static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("db.queryCache.enabled", "true"));
+  static final long TTL_MS = Long.getLong("db.queryCache.ttlMs", 60000L);
+  static final int MAX_ROWS = Integer.getInteger("db.queryCache.maxRows", 100000);
+
+  private static final Pattern TABLE = Pattern.compile("\\b(?:FROM|JOIN|INTO|UPDATE)\\s+`?(\\w+)`?",
+      Pattern.CASE_INSENSITIVE);
+  private static final int MAX_PARSED_STATEMENTS = 2000;
+  private static final Object NULL = new Object();
+
+  // ON DELETE CASCADE edges of the schema: a write to the key can change rows of the values
+  private static final Map<String, List<String>> CASCADES = new HashMap<>();
+  static {
+    CASCADES.put("USER", Arrays.asList("PROFILE", "WATCH_PROGRESS"));
+    CASCADES.put("PROFILE", Arrays.asList("WATCH_PROGRESS"));
+    CASCADES.put("MOVIE", Arrays.asList("WATCH_PROGRESS"));
+  }
+
+  interface Loader<T> {
+    T load() throws SQLException;
+  }
+
+  private static final class Key {
+    final String sql;
+    final List<Object> args;
+
+    Key(String sql, Object[] args) {
+      this.sql = sql;
+      this.args = args == null ? List.of() : Arrays.asList(args.clone());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return sql.equals(other.sql) && args.equals(other.args);
+    }
+
+    @Override
+    public int hashCode() {
+      return sql.hashCode() * 31 + args.hashCode();
+    }
+  }
+
+  private static final class Entry {
+    final Object value;
+    final Set<String> tables;
+    final long expiresAt;
+    final int rows;
+
+    Entry(Object value, Set<String> tables, long expiresAt, int rows) {
+      this.value = value;
+      this.tables = tables;
+      this.expiresAt = expiresAt;
+      this.rows = rows;
+    }
+  }
+
+  /** Invalidation state of one table. */
+  private static final class TableState {
+    final AtomicLong generation = new AtomicLong();
+    volatile long invalidatedAt = 0;
+  }
+
+  private final long replicaLagGuardMs;
+  private final Map<String, Set<String>> tablesOfSql = new ConcurrentHashMap<>();
+  private final Map<String, TableState> tables = new ConcurrentHashMap<>();
+  // guarded by this
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+  private final Map<String, Set<Key>> keysByTable = new HashMap<>();
+  private int cachedRows = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong skippedStores = new AtomicLong();
+
+  /**
+   * @param replicaLagGuardMs results are not stored for this long after their
+   *          tables were written, since a replica may still serve the old rows
+   */
+  QueryCache(long replicaLagGuardMs) {
+    this.replicaLagGuardMs = replicaLagGuardMs;
+  }
+
+  /** Returns the cached result of {@code sql}/{@code args}, loading it on a miss. */
+  @SuppressWarnings("unchecked")
+  <T> T get(String sql, Object[] args, Loader<T> loader) throws SQLException {
+    Key key = new Key(sql, args);
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        if (entry.expiresAt > now) {
+          hits.incrementAndGet();
+          return entry.value == NULL ? null : (T) entry.value;
+        }
+        expirations.incrementAndGet();
+        remove(key, entry);
+      }
+    }
+    misses.incrementAndGet();
+
+    Set<String> read = tablesOf(sql);
+    long[] generations = new long[read.size()];
+    int i = 0;
+    for (String table : read) {
+      generations[i++] = state(table).generation.get();
+    }
+    T value = loader.load();
+    store(key, read, generations, value);
+    return value;
+  }
+
+  private void store(Key key, Set<String> read, long[] generations, Object value) {
+    long now = System.currentTimeMillis();
+    int i = 0;
+    for (String table : read) {
+      TableState state = state(table);
+      if (state.generation.get() != generations[i++] || now - state.invalidatedAt < replicaLagGuardMs) {
+        skippedStores.incrementAndGet();
+        return;
+      }
+    }
+    int rows = value instanceof Collection ? Math.max(1, ((Collection<?>) value).size()) : 1;
+    if (rows > MAX_ROWS) {
+      return;
+    }
+    synchronized (this) {
+      // re-check under the lock, invalidate() bumps generations before taking it
+      i = 0;
+      for (String table : read) {
+        if (state(table).generation.get() != generations[i++]) {
+          skippedStores.incrementAndGet();
+          return;
+        }
+      }
+      Entry previous = entries.get(key);
+      if (previous != null) {
+        remove(key, previous);
+      }
+      entries.put(key, new Entry(value == null ? NULL : value, read, now + TTL_MS, rows));
+      cachedRows += rows;
+      for (String table : read) {
+        keysByTable.computeIfAbsent(table, t -> new HashSet<>()).add(key);
+      }
+      Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+      while (cachedRows > MAX_ROWS && eldest.hasNext()) {
+        Map.Entry<Key, Entry> victim = eldest.next();
+        eldest.remove();
+        unlink(victim.getKey(), victim.getValue());
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  /** Drops every entry that reads a table written by {@code sql}. */
+  void invalidate(String sql) {
+    Set<String> written = new LinkedHashSet<>();
+    for (String table : tablesOf(sql)) {
+      written.add(table);
+      List<String> cascades = CASCADES.get(table);
+      if (cascades != null) {
+        written.addAll(cascades);
+      }
+    }
+    invalidateTables(written);
+  }
+
+  void invalidateTables(Collection<String> written) {
+    long now = System.currentTimeMillis();
+    for (String table : written) {
+      TableState state = state(table);
+      state.generation.incrementAndGet();
+      state.invalidatedAt = now;
+    }
+    synchronized (this) {
+      for (String table : written) {
+        Set<Key> keys = keysByTable.remove(table);
+        if (keys == null) {
+          continue;
+        }
+        for (Key key : keys) {
+          Entry entry = entries.remove(key);
+          if (entry != null) {
+            unlink(key, entry);
+            invalidations.incrementAndGet();
+          }
+        }
+      }
+    }
+  }
+
+  private void remove(Key key, Entry entry) {
+    entries.remove(key);
+    unlink(key, entry);
+  }
+
+  // must hold the lock; the entry itself is already out of the map
+  private void unlink(Key key, Entry entry) {
+    cachedRows -= entry.rows;
+    for (String table : entry.tables) {
+      Set<Key> keys = keysByTable.get(table);
+      if (keys != null) {
+        keys.remove(key);
+        if (keys.isEmpty()) {
+          keysByTable.remove(table);
+        }
+      }
+    }
+  }
+
+  private TableState state(String table) {
+    TableState state = tables.get(table);
+    return state != null ? state : tables.computeIfAbsent(table, t -> new TableState());
+  }
+
+  Set<String> tablesOf(String sql) {
+    Set<String> found = tablesOfSql.get(sql);
+    if (found != null) {
+      return found;
+    }
+    found = new LinkedHashSet<>();
+    Matcher matcher = TABLE.matcher(sql);
+    while (matcher.find()) {
+      found.add(matcher.group(1).toUpperCase(Locale.ROOT));
+    }
+    if (tablesOfSql.size() < MAX_PARSED_STATEMENTS) {
+      tablesOfSql.put(sql, found);
+    }
+    return found;
+  }
+
+  @Override
+  public synchronized String toString() {
+    long h = hits.get();
+    long m = misses.get();
+    return String.format(
+        "queryCache entries=%d rows=%d/%d hits=%d misses=%d hitRatio=%.3f evictions=%d expirations=%d "
+            + "invalidations=%d skippedStores=%d",
+        entries.size(), cachedRows, MAX_ROWS, h, m, h + m == 0 ? 0.0 : (double) h / (h + m), evictions.get(),
+        expirations.get(), invalidations.get(), skippedStores.get());
+  }
+}
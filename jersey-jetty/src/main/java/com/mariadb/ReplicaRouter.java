@@ -0,0 +1,150 @@
+package com.mariadb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses a replica pool for read-only queries.
+ *
+ * Replicas are picked least-loaded (active plus waiting borrowers) or round-robin.
+ * After a write, reads that share its consistency key (for example
+ * {@code "profile:42"}) stay on the primary for a short window so a client never
+ * reads an older value than the one it just wrote.
+ */
+class ReplicaRouter {
+
+  // how long a replica that failed to hand out a connection is skipped
+  static final long DOWN_MS = 5000;
+  // purge expired read-your-writes entries once the map grows past this
+  private static final int RECENT_WRITES_PURGE_SIZE = 10000;
+
+  static class Replica {
+    final ConnectionPool pool;
+    volatile long downUntil = 0;
+
+    Replica(ConnectionPool pool) {
+      this.pool = pool;
+    }
+  }
+
+  private final List<Replica> replicas = new ArrayList<>();
+  private final boolean leastLoaded;
+  private final long readYourWritesMs;
+  private final AtomicInteger next = new AtomicInteger();
+  private final Map<String, Long> recentWrites = new ConcurrentHashMap<>();
+
+  private final AtomicLong replicaReads = new AtomicLong();
+  private final AtomicLong primaryReads = new AtomicLong();
+  private final AtomicLong pinnedReads = new AtomicLong();
+
+  ReplicaRouter(List<ConnectionPool> pools, boolean leastLoaded, long readYourWritesMs) {
+    for (ConnectionPool pool : pools) {
+      replicas.add(new Replica(pool));
+    }
+    this.leastLoaded = leastLoaded;
+    this.readYourWritesMs = readYourWritesMs;
+  }
+
+  boolean hasReplicas() {
+    return !replicas.isEmpty();
+  }
+
+  /** Returns the replica to read from, or null to read from the primary. */
+  Replica pick(String consistencyKey) {
+    if (replicas.isEmpty()) {
+      primaryReads.incrementAndGet();
+      return null;
+    }
+    if (consistencyKey != null && wroteRecently(consistencyKey)) {
+      pinnedReads.incrementAndGet();
+      return null;
+    }
+    long now = now();
+    int n = replicas.size();
+    int start = Math.floorMod(next.getAndIncrement(), n);
+    Replica best = null;
+    int bestLoad = Integer.MAX_VALUE;
+    for (int i = 0; i < n; i++) {
+      Replica replica = replicas.get((start + i) % n);
+      if (replica.downUntil > now) {
+        continue;
+      }
+      if (!leastLoaded) {
+        best = replica;
+        break;
+      }
+      int load = replica.pool.getActiveCount() + replica.pool.getWaitingCount();
+      if (load < bestLoad) {
+        best = replica;
+        bestLoad = load;
+      }
+    }
+    if (best == null) {
+      primaryReads.incrementAndGet();
+    } else {
+      replicaReads.incrementAndGet();
+    }
+    return best;
+  }
+
+  void markDown(Replica replica) {
+    replica.downUntil = now() + DOWN_MS;
+    System.err.println("Replica " + replica.pool.getName() + " unavailable, reading from primary for " + DOWN_MS
+        + "ms");
+  }
+
+  void recordWrite(String consistencyKey) {
+    if (replicas.isEmpty() || consistencyKey == null) {
+      return;
+    }
+    long now = now();
+    recentWrites.put(consistencyKey, now + readYourWritesMs);
+    if (recentWrites.size() > RECENT_WRITES_PURGE_SIZE) {
+      Iterator<Long> it = recentWrites.values().iterator();
+      while (it.hasNext()) {
+        if (it.next() <= now) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  boolean wroteRecently(String consistencyKey) {
+    Long until = recentWrites.get(consistencyKey);
+    if (until == null) {
+      return false;
+    }
+    if (until > now()) {
+      return true;
+    }
+    recentWrites.remove(consistencyKey, until);
+    return false;
+  }
+
+  /** The clock for down windows and read-your-writes; tests step it by hand. */
+  long now() {
+    return System.currentTimeMillis();
+  }
+
+  void close() {
+    for (Replica replica : replicas) {
+      replica.pool.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(String.format(
+        "replicas=%d policy=%s replicaReads=%d primaryReads=%d pinnedReads=%d", replicas.size(),
+        leastLoaded ? "least-loaded" : "round-robin", replicaReads.get(), primaryReads.get(), pinnedReads.get()));
+    for (Replica replica : replicas) {
+      sb.append('\n').append(replica.pool);
+    }
+    return sb.toString();
+  }
+}
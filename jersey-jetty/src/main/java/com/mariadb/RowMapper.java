@@ -0,0 +1,11 @@
+package com.mariadb;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a result set to an object.
+ */
+public interface RowMapper<T> {
+  T map(ResultSet result) throws SQLException;
+}
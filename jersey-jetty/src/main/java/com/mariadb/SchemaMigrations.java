@@ -0,0 +1,241 @@
+package com.mariadb;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Forward-only, versioned schema migrations.
+ *
+ * Applied versions are recorded in SCHEMA_VERSION together with a checksum of
+ * their statements; startup refuses to continue if an applied migration was
+ * edited afterwards. New schema changes are added as new versions at the end of
+ * {@link #MIGRATIONS}, never by changing an existing one.
+ */
+public class SchemaMigrations {
+
+  private static final String LOCK_NAME = "db_schema_migrations";
+  private static final int LOCK_TIMEOUT_SECONDS = 60;
+
+  static class Migration {
+    final int version;
+    final String description;
+    final List<String> statements;
+
+    Migration(int version, String description, String... statements) {
+      this.version = version;
+      this.description = description;
+      this.statements = Arrays.asList(statements);
+    }
+
+    String checksum() {
+      try {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (String statement : statements) {
+          digest.update(statement.getBytes(StandardCharsets.UTF_8));
+          digest.update((byte) '\n');
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+          hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  // Statements are written to be re-runnable, since MariaDB commits DDL implicitly
+  // and a migration interrupted halfway cannot be rolled back.
+  static final List<Migration> MIGRATIONS = Arrays.asList(
+      new Migration(1, "baseline tables",
+          "CREATE TABLE IF NOT EXISTS USER "
+              + "(id INT AUTO_INCREMENT not NULL, "
+              + " name VARCHAR(255) not NULL, "
+              + " password VARCHAR(255) not NULL,"
+              + " PRIMARY KEY ( id ))",
+          "CREATE TABLE IF NOT EXISTS CMS_USER "
+              + "(id INT AUTO_INCREMENT not NULL, "
+              + " username VARCHAR(255) not NULL UNIQUE, "
+              + " password VARCHAR(255) not NULL, "
+              + " PRIMARY KEY ( id ))",
+          "CREATE TABLE IF NOT EXISTS MOVIE "
+              + "(id INT AUTO_INCREMENT not NULL, "
+              + " name VARCHAR(255) not NULL, "
+              + " description VARCHAR(255),"
+              + " genre INT,"
+              + " year INT,"
+              + " videoPath VARCHAR(255) not NULL,"
+              + " thumbnailPath VARCHAR(255) not NULL,"
+              + " PRIMARY KEY ( id ))",
+          "CREATE TABLE IF NOT EXISTS PROFILE "
+              + "(id INT AUTO_INCREMENT not NULL, "
+              + " userId INT not NULL, "
+              + " name VARCHAR(255) not NULL, "
+              + " avatarColor VARCHAR(32) not NULL, "
+              + " kids BOOLEAN DEFAULT FALSE, "
+              + " PRIMARY KEY ( id ), "
+              + " CONSTRAINT fk_profile_user FOREIGN KEY (userId) REFERENCES USER(id) ON DELETE CASCADE, "
+              + " CONSTRAINT unique_user_profile UNIQUE (userId, name))",
+          "CREATE TABLE IF NOT EXISTS WATCH_PROGRESS "
+              + "(id INT AUTO_INCREMENT not NULL, "
+              + " profileId INT not NULL, "
+              + " movieId INT not NULL, "
+              + " positionMs BIGINT not NULL, "
+              + " updatedAt TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, "
+              + " PRIMARY KEY ( id ), "
+              + " CONSTRAINT fk_progress_profile FOREIGN KEY (profileId) REFERENCES PROFILE(id) ON DELETE CASCADE, "
+              + " CONSTRAINT fk_progress_movie FOREIGN KEY (movieId) REFERENCES MOVIE(id) ON DELETE CASCADE, "
+              + " CONSTRAINT unique_progress UNIQUE (profileId, movieId))",
+          // default CMS admin user
+          "INSERT IGNORE INTO CMS_USER(username,password) VALUES('admin','admin')"),
+      // streamVideo and getThumbnail look movies up by name on every request.
+      // Fails on a database that already holds duplicate movie names; rename or
+      // delete the extra rows before upgrading.
+      new Migration(2, "unique index on MOVIE.name",
+          "CREATE UNIQUE INDEX IF NOT EXISTS ux_movie_name ON MOVIE (name)"),
+      // Progress is read by profile (all entries, or pages by movie id). Clustering
+      // the table on (profileId, movieId) makes those reads one range scan over the
+      // rows themselves, without a second index: heartbeats only change positionMs
+      // and updatedAt, which stay unindexed, where a covering index would be
+      // rewritten on every one. unique_progress becomes the primary key and id
+      // keeps a unique index for ProgressArchiver's batches. PROFILE needs nothing:
+      // unique_user_profile already leads with userId and a user has a handful of
+      // profiles.
+      new Migration(3, "cluster WATCH_PROGRESS by profile and movie",
+          "ALTER TABLE WATCH_PROGRESS DROP PRIMARY KEY, ADD PRIMARY KEY (profileId, movieId), "
+              + "ADD UNIQUE KEY IF NOT EXISTS ux_progress_id (id)",
+          "ALTER TABLE WATCH_PROGRESS DROP INDEX IF EXISTS unique_progress"),
+      // user creation relies on the constraint instead of a SELECT before the INSERT.
+      // The old check-then-insert path could create duplicate names under
+      // concurrent sign-ups, and this fails on a database that has them; find them
+      // with SELECT name FROM USER GROUP BY name HAVING COUNT(*) > 1 and rename or
+      // delete the extra accounts before upgrading.
+      new Migration(4, "unique index on USER.name",
+          "CREATE UNIQUE INDEX IF NOT EXISTS ux_user_name ON USER (name)"),
+      // cold progress rows are moved here by ProgressArchiver; partitioned tables
+      // cannot carry foreign keys, and the archiver adds one partition per year
+      new Migration(5, "WATCH_PROGRESS_ARCHIVE table",
+          "CREATE TABLE IF NOT EXISTS WATCH_PROGRESS_ARCHIVE "
+              + "(profileId INT not NULL, "
+              + " movieId INT not NULL, "
+              + " positionMs BIGINT not NULL, "
+              + " updatedAt DATETIME not NULL, "
+              + " archivedAt DATETIME not NULL, "
+              + " reason TINYINT not NULL, "
+              + " PRIMARY KEY ( profileId, movieId, archivedAt ))"
+              + " PARTITION BY RANGE (YEAR(archivedAt)) "
+              + "(PARTITION pold VALUES LESS THAN (2026), PARTITION pmax VALUES LESS THAN MAXVALUE)"));
+
+  private SchemaMigrations() {
+  }
+
+  /** Applies every migration newer than the recorded schema version. */
+  public static void migrate() throws SQLException {
+    Mariadb.withConnection(lease -> {
+      Connection conn = lease.connection();
+      lock(conn);
+      try {
+        ensureVersionTable(conn);
+        Map<Integer, String> applied = appliedChecksums(conn);
+        int latest = 0;
+        for (Migration migration : MIGRATIONS) {
+          latest = migration.version;
+          String checksum = migration.checksum();
+          String recorded = applied.remove(migration.version);
+          if (recorded != null) {
+            if (!recorded.equals(checksum)) {
+              throw new SQLException(String.format(
+                  "Migration V%d (%s) was changed after it was applied; add a new migration instead",
+                  migration.version, migration.description));
+            }
+            continue;
+          }
+          apply(conn, migration, checksum);
+        }
+        if (!applied.isEmpty()) {
+          System.out.println("Database has migrations unknown to this build: " + applied.keySet());
+        }
+        System.out.println("Database schema at version " + latest);
+      } finally {
+        unlock(conn);
+      }
+      return null;
+    });
+  }
+
+  private static void apply(Connection conn, Migration migration, String checksum) throws SQLException {
+    System.out.println(String.format("Applying migration V%d: %s", migration.version, migration.description));
+    try (Statement stmt = conn.createStatement()) {
+      for (String sql : migration.statements) {
+        stmt.executeUpdate(sql);
+      }
+    }
+    try (PreparedStatement pstm = conn.prepareStatement(
+        "INSERT INTO SCHEMA_VERSION(version,description,checksum) VALUES(?,?,?)")) {
+      pstm.setInt(1, migration.version);
+      pstm.setString(2, migration.description);
+      pstm.setString(3, checksum);
+      pstm.executeUpdate();
+    }
+  }
+
+  private static void ensureVersionTable(Connection conn) throws SQLException {
+    try (ResultSet tables = conn.getMetaData().getTables(conn.getCatalog(), null, "SCHEMA_VERSION", null)) {
+      if (tables.next()) {
+        return;
+      }
+    }
+    try (Statement stmt = conn.createStatement()) {
+      stmt.executeUpdate("CREATE TABLE IF NOT EXISTS SCHEMA_VERSION "
+          + "(version INT not NULL, "
+          + " description VARCHAR(255) not NULL, "
+          + " checksum CHAR(64) not NULL, "
+          + " appliedAt TIMESTAMP DEFAULT CURRENT_TIMESTAMP, "
+          + " PRIMARY KEY ( version ))");
+    }
+  }
+
+  private static Map<Integer, String> appliedChecksums(Connection conn) throws SQLException {
+    Map<Integer, String> applied = new HashMap<>();
+    try (Statement stmt = conn.createStatement();
+        ResultSet result = stmt.executeQuery("SELECT version, checksum FROM SCHEMA_VERSION")) {
+      while (result.next()) {
+        applied.put(result.getInt("version"), result.getString("checksum"));
+      }
+    }
+    return applied;
+  }
+
+  // Serializes migrations when several servers start against the same database
+  private static void lock(Connection conn) throws SQLException {
+    try (PreparedStatement pstm = conn.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+      pstm.setString(1, LOCK_NAME);
+      pstm.setInt(2, LOCK_TIMEOUT_SECONDS);
+      try (ResultSet result = pstm.executeQuery()) {
+        if (!result.next() || result.getInt(1) != 1) {
+          throw new SQLException("Timed out waiting for the schema migration lock");
+        }
+      }
+    }
+  }
+
+  private static void unlock(Connection conn) {
+    try (PreparedStatement pstm = conn.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+      pstm.setString(1, LOCK_NAME);
+      pstm.executeQuery().close();
+    } catch (SQLException se) {
+      se.printStackTrace();
+    }
+  }
+}
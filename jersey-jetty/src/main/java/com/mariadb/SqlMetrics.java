@@ -0,0 +1,214 @@
+package com.mariadb;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Latency histograms and row/error counters for every statement run through
+ * {@link Mariadb} and {@link Transaction}.
+ *
+ * Statements are grouped by shape (the SQL with literals and repeated
+ * placeholder lists collapsed) and by the endpoint method that issued them.
+ * Statements slower than {@code db.slowQueryMs} are logged with the types of
+ * their bind arguments, never their values.
+ */
+class SqlMetrics {
+
+  static final long SLOW_QUERY_MS = Long.getLong("db.slowQueryMs", 200L);
+
+  private static final String ENDPOINT_PACKAGE = "com.mkyong.endpoints.";
+  // shapes beyond this are counted under OTHER so odd ad-hoc SQL cannot grow the map forever
+  private static final int MAX_SHAPES = 500;
+  private static final String OTHER = "(other)";
+  private static final String INTERNAL = "(internal)";
+  // bucket i counts executions that took [2^i, 2^(i+1)) microseconds
+  private static final int BUCKETS = 26;
+
+  private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^'\\\\]|\\\\.|'')*'");
+  private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+\\b");
+  private static final Pattern PLACEHOLDER_LIST = Pattern.compile("\\?(?:\\s*,\\s*\\?)+");
+  private static final Pattern REPEATED_TUPLES = Pattern.compile("(\\([^()]*\\))(?:\\s*,\\s*\\([^()]*\\))+");
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+  /** Counters for one statement shape or one endpoint. */
+  static class Stats {
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong rows = new AtomicLong();
+    final AtomicLong totalMicros = new AtomicLong();
+    final AtomicLong maxMicros = new AtomicLong();
+    final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    void record(long micros, long rowCount, boolean failed) {
+      calls.incrementAndGet();
+      if (failed) {
+        errors.incrementAndGet();
+      }
+      rows.addAndGet(rowCount);
+      totalMicros.addAndGet(micros);
+      maxMicros.accumulateAndGet(micros, Math::max);
+      int bucket = micros <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+      histogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    }
+
+    // upper bound of the bucket holding the given quantile, in microseconds
+    long percentile(double quantile) {
+      long total = 0;
+      long[] counts = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] = histogram.get(i);
+        total += counts[i];
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(total * quantile);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return 1L << (i + 1);
+        }
+      }
+      return 1L << BUCKETS;
+    }
+
+    String format(String label) {
+      long n = calls.get();
+      return String.format("calls=%d errors=%d rows=%d avgUs=%d p50Us<=%d p95Us<=%d p99Us<=%d maxUs=%d %s", n,
+          errors.get(), rows.get(), n == 0 ? 0 : totalMicros.get() / n, percentile(0.50), percentile(0.95),
+          percentile(0.99), maxMicros.get(), label);
+    }
+  }
+
+  interface Execution<T> {
+    T run() throws SQLException;
+  }
+
+  private static final Map<String, String> shapeOfSql = new ConcurrentHashMap<>();
+  private static final Map<String, Stats> byShape = new ConcurrentHashMap<>();
+  private static final Map<String, Stats> byEndpoint = new ConcurrentHashMap<>();
+  private static final AtomicLong slowQueries = new AtomicLong();
+
+  private static final StackWalker WALKER = StackWalker.getInstance();
+
+  private SqlMetrics() {
+  }
+
+  /**
+   * Runs {@code execution}, timing it under the shape of {@code sql}. {@code rows}
+   * tells how many rows the result stands for (returned or affected).
+   */
+  static <T> T time(String sql, Object[] args, Execution<T> execution, ToLongFunction<? super T> rows)
+      throws SQLException {
+    long start = System.nanoTime();
+    T result = null;
+    SQLException failure = null;
+    try {
+      result = execution.run();
+      return result;
+    } catch (SQLException se) {
+      failure = se;
+      throw se;
+    } finally {
+      long micros = (System.nanoTime() - start) / 1000;
+      long rowCount = failure == null && result != null ? rows.applyAsLong(result) : 0;
+      record(sql, args, micros, rowCount, failure);
+    }
+  }
+
+  private static void record(String sql, Object[] args, long micros, long rowCount, SQLException failure) {
+    String shape = shapeOf(sql);
+    String endpoint = callingEndpoint();
+    stats(byShape, shape).record(micros, rowCount, failure != null);
+    stats(byEndpoint, endpoint).record(micros, rowCount, failure != null);
+    if (micros >= SLOW_QUERY_MS * 1000) {
+      slowQueries.incrementAndGet();
+      System.err.println(String.format("Slow SQL %dms rows=%d endpoint=%s args=%s%s sql=%s", micros / 1000,
+          rowCount, endpoint, argShapes(args), failure != null ? " error=" + failure.getErrorCode() : "", shape));
+    }
+  }
+
+  private static Stats stats(Map<String, Stats> map, String key) {
+    Stats stats = map.get(key);
+    if (stats != null) {
+      return stats;
+    }
+    if (map.size() >= MAX_SHAPES) {
+      key = OTHER;
+    }
+    return map.computeIfAbsent(key, k -> new Stats());
+  }
+
+  static String shapeOf(String sql) {
+    String shape = shapeOfSql.get(sql);
+    if (shape != null) {
+      return shape;
+    }
+    shape = STRING_LITERAL.matcher(sql).replaceAll("?");
+    shape = NUMBER_LITERAL.matcher(shape).replaceAll("?");
+    shape = PLACEHOLDER_LIST.matcher(shape).replaceAll("?, ...");
+    shape = REPEATED_TUPLES.matcher(shape).replaceAll("$1, ...");
+    shape = WHITESPACE.matcher(shape).replaceAll(" ").trim();
+    if (shapeOfSql.size() < MAX_SHAPES * 4) {
+      shapeOfSql.put(sql, shape);
+    }
+    return shape;
+  }
+
+  // "Progress.getProgress" for the first endpoint frame on the stack, lambdas included
+  private static String callingEndpoint() {
+    return WALKER.walk(frames -> frames
+        .filter(frame -> frame.getClassName().startsWith(ENDPOINT_PACKAGE))
+        .findFirst()
+        .map(frame -> {
+          String className = frame.getClassName().substring(ENDPOINT_PACKAGE.length());
+          int nested = className.indexOf('$');
+          if (nested >= 0) {
+            className = className.substring(0, nested);
+          }
+          String method = frame.getMethodName();
+          if (method.startsWith("lambda$")) {
+            int end = method.indexOf('$', 7);
+            method = method.substring(7, end > 7 ? end : method.length());
+          }
+          return className + "." + method;
+        })
+        .orElse(INTERNAL));
+  }
+
+  private static String argShapes(Object[] args) {
+    if (args == null) {
+      return "[]";
+    }
+    List<String> types = new ArrayList<>(args.length);
+    for (Object arg : args) {
+      types.add(arg == null ? "null" : arg.getClass().getSimpleName());
+    }
+    return types.toString();
+  }
+
+  static String stats() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("sql slowQueries=%d slowQueryMs=%d", slowQueries.get(), SLOW_QUERY_MS));
+    appendSorted(sb, "sql.endpoint ", byEndpoint);
+    appendSorted(sb, "sql.shape ", byShape);
+    return sb.toString();
+  }
+
+  // most expensive first, so the interesting lines are at the top
+  private static void appendSorted(StringBuilder sb, String prefix, Map<String, Stats> map) {
+    List<Map.Entry<String, Stats>> entries = new ArrayList<>(map.entrySet());
+    entries.sort((a, b) -> Long.compare(b.getValue().totalMicros.get(), a.getValue().totalMicros.get()));
+    for (Map.Entry<String, Stats> entry : entries) {
+      sb.append('\n').append(prefix).append(entry.getValue().format(entry.getKey()));
+    }
+  }
+}
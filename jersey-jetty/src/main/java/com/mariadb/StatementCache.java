@@ -0,0 +1,85 @@
+package com.mariadb;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of prepared statements for a single pooled connection, keyed by SQL text.
+ *
+ * A connection is only ever used by one lease at a time, so the cache itself is not
+ * synchronized. Statements handed out here must not be closed by the caller; only
+ * their result sets are.
+ */
+class StatementCache {
+
+  static final int MAX_SIZE = Integer.getInteger("db.statementCache.size", 64);
+
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong evictions = new AtomicLong();
+
+  private final Connection conn;
+  private final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f,
+      true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+      if (size() <= MAX_SIZE) {
+        return false;
+      }
+      evictions.incrementAndGet();
+      closeQuietly(eldest.getValue());
+      return true;
+    }
+  };
+
+  StatementCache(Connection conn) {
+    this.conn = conn;
+  }
+
+  PreparedStatement prepare(String sql) throws SQLException {
+    return prepare(sql, false);
+  }
+
+  PreparedStatement prepare(String sql, boolean returnGeneratedKeys) throws SQLException {
+    // generated-key statements are prepared differently, so they get their own slot
+    String key = returnGeneratedKeys ? "#keys#" + sql : sql;
+    PreparedStatement pstm = statements.get(key);
+    if (pstm != null && !pstm.isClosed()) {
+      hits.incrementAndGet();
+      pstm.clearParameters();
+      return pstm;
+    }
+    misses.incrementAndGet();
+    pstm = returnGeneratedKeys
+        ? conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+        : conn.prepareStatement(sql);
+    statements.put(key, pstm);
+    return pstm;
+  }
+
+  void closeAll() {
+    for (PreparedStatement pstm : statements.values()) {
+      closeQuietly(pstm);
+    }
+    statements.clear();
+  }
+
+  private static void closeQuietly(PreparedStatement pstm) {
+    try {
+      pstm.close();
+    } catch (SQLException ignored) {
+    }
+  }
+
+  static String stats() {
+    long h = hits.get();
+    long m = misses.get();
+    return String.format("statementCache hits=%d misses=%d evictions=%d hitRatio=%.3f", h, m, evictions.get(),
+        h + m == 0 ? 0.0 : (double) h / (h + m));
+  }
+}
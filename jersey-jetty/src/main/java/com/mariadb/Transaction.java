@@ -0,0 +1,62 @@
+package com.mariadb;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Statements run on the single connection of a {@link Mariadb#inTransaction} unit of work.
+ */
+public class Transaction {
+
+  private final ConnectionPool.Lease lease;
+  private final Set<String> writeStatements = new LinkedHashSet<>();
+
+  Transaction(ConnectionPool.Lease lease) {
+    this.lease = lease;
+  }
+
+  public int update(String stm, Object... args) throws SQLException {
+    written(stm);
+    PreparedStatement pstm = lease.prepare(stm);
+    Mariadb.bind(pstm, args);
+    return SqlMetrics.time(stm, args, pstm::executeUpdate, count -> count);
+  }
+
+  /** Runs an INSERT and returns the generated key, or null if nothing was inserted. */
+  public Integer insertReturningKey(String stm, Object... args) throws SQLException {
+    written(stm);
+    PreparedStatement pstm = lease.prepareReturningKeys(stm);
+    Mariadb.bind(pstm, args);
+    return SqlMetrics.time(stm, args, () -> {
+      if (pstm.executeUpdate() == 0) {
+        return null;
+      }
+      try (ResultSet keys = pstm.getGeneratedKeys()) {
+        return keys.next() ? keys.getInt(1) : null;
+      }
+    }, key -> 1);
+  }
+
+  // cached reads of the table are dropped now and again after the commit
+  private void written(String stm) {
+    writeStatements.add(stm);
+    Mariadb.invalidate(stm);
+  }
+
+  Set<String> writeStatements() {
+    return writeStatements;
+  }
+
+  public <T> T queryOne(String stm, RowMapper<T> mapper, Object... args) throws SQLException {
+    PreparedStatement pstm = lease.prepare(stm);
+    Mariadb.bind(pstm, args);
+    return SqlMetrics.time(stm, args, () -> {
+      try (ResultSet result = pstm.executeQuery()) {
+        return result.next() ? mapper.map(result) : null;
+      }
+    }, row -> 1);
+  }
+}
@@ -0,0 +1,76 @@
+package com.mariadb;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Data access for the USER table.
+ */
+public class UserRepository {
+
+  public static final RowMapper<User> MAPPER = result -> new User(result.getInt("id"), result.getString("name"),
+      result.getString("password"));
+
+  private static final String COLUMNS = "id, name, password";
+  private static final String CONSISTENCY_KEY = "users";
+
+  public void forEach(Consumer<? super User> sink) throws SQLException {
+    Mariadb.forEachRowReadOnly(CONSISTENCY_KEY, "SELECT " + COLUMNS + " FROM USER", MAPPER, sink);
+  }
+
+  public List<User> findAll() throws SQLException {
+    return Mariadb.queryListReadOnly(CONSISTENCY_KEY, "SELECT " + COLUMNS + " FROM USER", MAPPER);
+  }
+
+  /** Keyset page: up to {@code limit} users with an id greater than {@code afterId}, by id. */
+  public List<User> findPage(int afterId, int limit) throws SQLException {
+    return Mariadb.queryListReadOnly(CONSISTENCY_KEY,
+        "SELECT " + COLUMNS + " FROM USER WHERE id > ? ORDER BY id LIMIT ?", MAPPER, afterId, limit);
+  }
+
+  public User findById(int id) throws SQLException {
+    return Mariadb.queryOne("SELECT " + COLUMNS + " FROM USER WHERE id = ?", MAPPER, id);
+  }
+
+  public User findByName(String name) throws SQLException {
+    return Mariadb.queryOne("SELECT " + COLUMNS + " FROM USER WHERE name = ?", MAPPER, name);
+  }
+
+  public User findByCredentials(String name, String password) throws SQLException {
+    return Mariadb.queryOne("SELECT " + COLUMNS + " FROM USER WHERE name = ? AND password = ?", MAPPER, name,
+        password);
+  }
+
+  /**
+   * Creates a user and its default profile in one transaction. Returns null when
+   * the name is already taken.
+   */
+  public User createWithDefaultProfile(String name, String password, String profileColor) throws SQLException {
+    try {
+      User user = Mariadb.inTransaction(tx -> {
+        Integer id = tx.insertReturningKey("INSERT INTO USER(name,password) VALUES(?,?)", name, password);
+        if (id == null) {
+          throw new SQLException("User insert returned no generated key");
+        }
+        tx.update("INSERT INTO PROFILE(userId,name,avatarColor,kids) VALUES(?,?,?,?)", id, name, profileColor,
+            false);
+        return new User(id, name, password);
+      });
+      Mariadb.recordWrite(CONSISTENCY_KEY);
+      Mariadb.recordWrite(ProfileRepository.consistencyKey(user.getId()));
+      return user;
+    } catch (SQLException se) {
+      if (Mariadb.isDuplicateKey(se)) {
+        return null;
+      }
+      throw se;
+    }
+  }
+
+  public boolean delete(int id) throws SQLException {
+    boolean deleted = Mariadb.update("DELETE FROM USER WHERE id = ?", id) > 0;
+    Mariadb.recordWrite(CONSISTENCY_KEY);
+    return deleted;
+  }
+}
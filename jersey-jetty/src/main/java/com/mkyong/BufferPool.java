@@ -0,0 +1,239 @@
+package com.mkyong;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared pool of reusable byte arrays for the streaming paths.
+ *
+ * Arrays come in power-of-two size classes from 4 KB up to 16 MB and are handed
+ * out as reference-counted {@link Buffer}s; the last {@link Buffer#release()}
+ * returns the array to its class. {@code stream.bufferPool.maxMb} caps every
+ * array the pool owns, handed out or idle: when a new one would not fit, idle
+ * arrays of other sizes are dropped, and failing that {@link #acquire(int)} waits
+ * up to {@code stream.bufferPool.waitMs} for buffers to be released before it
+ * fails the stream. Requests above the largest class count against the cap too
+ * but are not kept. A buffer that becomes unreachable without being released is
+ * counted as a leak and its array is written off.
+ *
+ * The arrays are on the heap, since every stream ends in an OutputStream that
+ * takes byte arrays; direct buffers would add a copy per write.
+ */
+public final class BufferPool {
+
+  static final long MAX_BYTES = Long.getLong("stream.bufferPool.maxMb", 256L) * 1024 * 1024;
+  static final long WAIT_MS = Long.getLong("stream.bufferPool.waitMs", 5000L);
+  // copy buffers of the paths that do not move whole blocks
+  public static final int LOCAL_FILE_SIZE = Integer.getInteger("stream.buffer.localKb", 64) * 1024;
+  public static final int HEAD_COPY_SIZE = Integer.getInteger("stream.buffer.headKb", 64) * 1024;
+
+  private static final int MIN_SHIFT = 12;
+  private static final int MAX_SHIFT = 24;
+
+  @SuppressWarnings("unchecked")
+  private static final ConcurrentLinkedDeque<byte[]>[] free = new ConcurrentLinkedDeque[MAX_SHIFT - MIN_SHIFT + 1];
+  private static final Cleaner cleaner = Cleaner.create();
+
+  // guards changes to pooledBytes; acquirers waiting for room sleep on it
+  private static final Object room = new Object();
+  private static final AtomicInteger waiting = new AtomicInteger();
+
+  // every array the pool owns, in use or idle
+  private static final AtomicLong pooledBytes = new AtomicLong();
+  private static final AtomicLong inUseBytes = new AtomicLong();
+  private static final AtomicLong acquired = new AtomicLong();
+  private static final AtomicLong allocated = new AtomicLong();
+  private static final AtomicLong dropped = new AtomicLong();
+  private static final AtomicLong waits = new AtomicLong();
+  private static final AtomicLong exhausted = new AtomicLong();
+  private static final AtomicLong leaks = new AtomicLong();
+
+  static {
+    for (int i = 0; i < free.length; i++) {
+      free[i] = new ConcurrentLinkedDeque<>();
+    }
+  }
+
+  private BufferPool() {
+  }
+
+  // outlives the buffer, so a leak can still be accounted for after the buffer is collected
+  private static final class State implements Runnable {
+    final AtomicInteger refs = new AtomicInteger(1);
+    final int capacity;
+    final boolean pooled;
+
+    State(int capacity, boolean pooled) {
+      this.capacity = capacity;
+      this.pooled = pooled;
+    }
+
+    @Override
+    public void run() {
+      if (refs.get() > 0) {
+        leaks.incrementAndGet();
+        inUseBytes.addAndGet(-capacity);
+        giveBack(capacity);
+      }
+    }
+  }
+
+  /** A pooled array and the number of valid bytes in it. */
+  public static final class Buffer {
+    public final byte[] array;
+    public int length;
+    private final State state;
+    private final Cleaner.Cleanable cleanable;
+
+    private Buffer(byte[] array, int length, boolean pooled) {
+      this.array = array;
+      this.length = length;
+      this.state = new State(array.length, pooled);
+      this.cleanable = cleaner.register(this, state);
+    }
+
+    /** Takes another reference; false if the buffer was already given back. */
+    public boolean retain() {
+      while (true) {
+        int refs = state.refs.get();
+        if (refs <= 0) {
+          return false;
+        }
+        if (state.refs.compareAndSet(refs, refs + 1)) {
+          return true;
+        }
+      }
+    }
+
+    /** Drops a reference; the last one returns the array to the pool. */
+    public void release() {
+      int refs = state.refs.decrementAndGet();
+      if (refs < 0) {
+        throw new IllegalStateException("Buffer released more often than retained");
+      }
+      if (refs == 0) {
+        inUseBytes.addAndGet(-array.length);
+        if (state.pooled) {
+          free[classOf(array.length)].push(array);
+          wakeWaiters();
+        } else {
+          giveBack(array.length);
+        }
+        // unregisters the leak check, which now finds no references
+        cleanable.clean();
+      }
+    }
+  }
+
+  private static int classOf(int size) {
+    if (size <= 1 << MIN_SHIFT) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+  }
+
+  /**
+   * A buffer of at least {@code size} bytes, with {@code length} set to
+   * {@code size}. Fails once the pool has been at its cap for
+   * {@code stream.bufferPool.waitMs}.
+   */
+  public static Buffer acquire(int size) throws IOException {
+    acquired.incrementAndGet();
+    if (size > 1 << MAX_SHIFT) {
+      byte[] array = take(-1, size);
+      inUseBytes.addAndGet(size);
+      return new Buffer(array, size, false);
+    }
+    int sizeClass = classOf(size);
+    byte[] array = free[sizeClass].poll();
+    if (array == null) {
+      array = take(sizeClass, 1 << (sizeClass + MIN_SHIFT));
+    }
+    inUseBytes.addAndGet(array.length);
+    return new Buffer(array, size, true);
+  }
+
+  // an idle array of sizeClass (-1 for none), or a new one of capacity once the cap leaves room for it
+  private static byte[] take(int sizeClass, int capacity) throws IOException {
+    if (capacity > MAX_BYTES) {
+      exhausted.incrementAndGet();
+      throw new IOException("Buffer of " + capacity + " bytes is larger than stream.bufferPool.maxMb");
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MS);
+    boolean waited = false;
+    synchronized (room) {
+      // counted before the first look, so a release racing with it wakes us
+      waiting.incrementAndGet();
+      try {
+        while (true) {
+          byte[] array = sizeClass < 0 ? null : free[sizeClass].poll();
+          if (array != null) {
+            return array;
+          }
+          if (pooledBytes.get() + capacity <= MAX_BYTES || drop(pooledBytes.get() + capacity - MAX_BYTES)) {
+            pooledBytes.addAndGet(capacity);
+            allocated.incrementAndGet();
+            return new byte[capacity];
+          }
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            exhausted.incrementAndGet();
+            throw new IOException(String.format("No room for a %d KB buffer after %dms: %d MB of %d MB in use",
+                capacity >> 10, WAIT_MS, inUseBytes.get() >> 20, MAX_BYTES >> 20));
+          }
+          if (!waited) {
+            waits.incrementAndGet();
+            waited = true;
+          }
+          TimeUnit.NANOSECONDS.timedWait(room, remaining);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for a buffer", e);
+      } finally {
+        waiting.decrementAndGet();
+      }
+    }
+  }
+
+  // frees at least bytes of idle arrays, largest first; false if there are not enough
+  private static boolean drop(long bytes) {
+    long freed = 0;
+    for (int i = free.length - 1; i >= 0 && freed < bytes; i--) {
+      byte[] array;
+      while (freed < bytes && (array = free[i].poll()) != null) {
+        freed += array.length;
+        dropped.incrementAndGet();
+      }
+    }
+    pooledBytes.addAndGet(-freed);
+    return freed >= bytes;
+  }
+
+  // an array the pool no longer owns
+  private static void giveBack(int capacity) {
+    synchronized (room) {
+      pooledBytes.addAndGet(-capacity);
+      room.notifyAll();
+    }
+  }
+
+  private static void wakeWaiters() {
+    if (waiting.get() > 0) {
+      synchronized (room) {
+        room.notifyAll();
+      }
+    }
+  }
+
+  public static String stats() {
+    return String.format(
+        "bufferPool pooledMb=%d/%d inUseMb=%d acquired=%d allocated=%d dropped=%d waits=%d exhausted=%d leaks=%d",
+        pooledBytes.get() >> 20, MAX_BYTES >> 20, inUseBytes.get() >> 20, acquired.get(), allocated.get(),
+        dropped.get(), waits.get(), exhausted.get(), leaks.get());
+  }
+}
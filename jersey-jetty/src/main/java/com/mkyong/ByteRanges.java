@@ -0,0 +1,289 @@
+package com.mkyong;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.UUID;
+
+/**
+ * HTTP range requests (RFC 7233) for every video streaming path.
+ *
+ * Offsets and lengths are 64-bit. Supported are {@code bytes=first-last},
+ * open-ended {@code bytes=first-} and suffix {@code bytes=-count} ranges, several
+ * of them in one request (answered as {@code multipart/byteranges}), and
+ * {@code If-Range} with an entity tag or a date. A Range header that does not
+ * parse is ignored and the whole representation is sent; a valid one that
+ * selects nothing gets 416 with the current length. Bodies stop as soon as the
+ * client disconnects (see {@link StreamStats}).
+ *
+ * An open-ended range is answered with at most a window of
+ * {@code stream.window.maxKb} (or {@code stream.window.maxKb.<resolution>}),
+ * and the player asks for the next window as it plays. After a seek only that
+ * window is left in flight, instead of the whole rest of the file.
+ */
+public final class ByteRanges {
+
+  // more ranges than this in one request is abuse rather than playback
+  static final int MAX_RANGES = 16;
+  static final long MAX_WINDOW_KB = Long.getLong("stream.window.maxKb", 4096L);
+
+  /** An inclusive byte range. */
+  public static final class Range {
+    public final long first;
+    public final long last;
+
+    Range(long first, long last) {
+      this.first = first;
+      this.last = last;
+    }
+
+    public long length() {
+      return last - first + 1;
+    }
+
+    String contentRange(long size) {
+      return "bytes " + first + "-" + last + "/" + size;
+    }
+  }
+
+  /** Writes {@code length} bytes of the representation starting at {@code start}. */
+  public interface Body {
+    void write(long start, long length, OutputStream output) throws IOException;
+  }
+
+  private ByteRanges() {
+  }
+
+  /** Largest answer to an open-ended range, in bytes; 0 for no limit. */
+  public static long maxWindow() {
+    return MAX_WINDOW_KB * 1024;
+  }
+
+  /** Same as {@link #maxWindow()} for one rendition. */
+  public static long maxWindow(int resolution) {
+    return Long.getLong("stream.window.maxKb." + resolution, MAX_WINDOW_KB) * 1024;
+  }
+
+  public static List<Range> parse(String header, long size) {
+    return parse(header, size, 0);
+  }
+
+  /**
+   * The ranges a header selects from a representation of {@code size} bytes,
+   * sorted and with overlapping ranges merged: null when the header is absent or
+   * invalid (serve everything), empty when none is satisfiable (416). Open-ended
+   * ranges stop after {@code maxWindow} bytes unless it is 0.
+   */
+  public static List<Range> parse(String header, long size, long maxWindow) {
+    if (header == null) {
+      return null;
+    }
+    int eq = header.indexOf('=');
+    if (eq < 0 || !header.substring(0, eq).trim().equalsIgnoreCase("bytes")) {
+      return null;
+    }
+    List<Range> ranges = new ArrayList<>();
+    boolean any = false;
+    for (String spec : header.substring(eq + 1).split(",")) {
+      spec = spec.trim();
+      if (spec.isEmpty()) {
+        continue;
+      }
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      String firstPart = spec.substring(0, dash).trim();
+      String lastPart = spec.substring(dash + 1).trim();
+      if (!isDigits(firstPart) && !(firstPart.isEmpty() && isDigits(lastPart))) {
+        return null;
+      }
+      if (!lastPart.isEmpty() && !isDigits(lastPart)) {
+        return null;
+      }
+      any = true;
+      if (firstPart.isEmpty()) {
+        // suffix: the last n bytes
+        long count = number(lastPart);
+        if (count > 0 && size > 0) {
+          ranges.add(new Range(Math.max(0, size - Math.min(count, size)), size - 1));
+        }
+        continue;
+      }
+      long first = number(firstPart);
+      long last = lastPart.isEmpty() ? Long.MAX_VALUE : number(lastPart);
+      if (lastPart.isEmpty() && maxWindow > 0 && first <= Long.MAX_VALUE - maxWindow) {
+        // the client asked for "the rest"; Content-Range tells it where this answer stops
+        last = first + maxWindow - 1;
+      }
+      if (last < first) {
+        return null;
+      }
+      if (first < size) {
+        ranges.add(new Range(first, Math.min(last, size - 1)));
+      }
+    }
+    if (!any) {
+      return null;
+    }
+    return coalesce(ranges);
+  }
+
+  private static boolean isDigits(String s) {
+    if (s.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // values beyond a long are as good as infinite here
+  private static long number(String digits) {
+    try {
+      return Long.parseLong(digits);
+    } catch (NumberFormatException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  private static List<Range> coalesce(List<Range> ranges) {
+    if (ranges.size() < 2) {
+      return ranges;
+    }
+    Collections.sort(ranges, (a, b) -> Long.compare(a.first, b.first));
+    List<Range> merged = new ArrayList<>();
+    Range current = ranges.get(0);
+    for (int i = 1; i < ranges.size(); i++) {
+      Range next = ranges.get(i);
+      // adjacent ranges are cheaper as one part than as two
+      if (next.first <= current.last + 1) {
+        current = new Range(current.first, Math.max(current.last, next.last));
+      } else {
+        merged.add(current);
+        current = next;
+      }
+    }
+    merged.add(current);
+    return merged;
+  }
+
+  /**
+   * Whether a Range header still applies: true without If-Range, otherwise only
+   * when it names the current strong entity tag or exact modification date.
+   */
+  static boolean ifRangeMatches(String ifRange, String etag, Date lastModified) {
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"")) {
+      return etag != null && !etag.startsWith("W/") && etag.equals(ifRange);
+    }
+    if (ifRange.startsWith("W/") || lastModified == null) {
+      return false;
+    }
+    try {
+      // HTTP dates have second precision
+      return httpDate().parse(ifRange).getTime() == lastModified.getTime() / 1000 * 1000;
+    } catch (java.text.ParseException e) {
+      return false;
+    }
+  }
+
+  private static SimpleDateFormat httpDate() {
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format;
+  }
+
+  /**
+   * The response to a (possibly ranged) GET of a representation: 200 with
+   * everything, 206 with one range or a multipart body, or 416.
+   *
+   * @param etag         strong entity tag of the representation, quoted, or null
+   * @param lastModified modification date, or null
+   */
+  public static Response respond(String rangeHeader, String ifRange, String etag, Date lastModified, long size,
+      String contentType, Body body) {
+    return respond(rangeHeader, ifRange, etag, lastModified, size, contentType, 0, body);
+  }
+
+  /** Same as above, with open-ended ranges limited to {@code maxWindow} bytes. */
+  public static Response respond(String rangeHeader, String ifRange, String etag, Date lastModified, long size,
+      String contentType, long maxWindow, Body body) {
+    List<Range> ranges = ifRangeMatches(ifRange, etag, lastModified) ? parse(rangeHeader, size, maxWindow) : null;
+    Response.ResponseBuilder builder;
+    if (ranges == null) {
+      StreamingOutput stream = StreamStats.track(output -> {
+        body.write(0, size, output);
+        output.flush();
+      });
+      builder = Response.ok(stream, contentType)
+          .status(Response.Status.OK)
+          .header(HttpHeaders.CONTENT_LENGTH, size);
+    } else if (ranges.isEmpty() || ranges.size() > MAX_RANGES) {
+      builder = Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+          .header("Content-Range", "bytes */" + size);
+    } else if (ranges.size() == 1) {
+      Range range = ranges.get(0);
+      StreamingOutput stream = StreamStats.track(output -> {
+        body.write(range.first, range.length(), output);
+        output.flush();
+      });
+      builder = Response.ok(stream, contentType)
+          .status(Response.Status.PARTIAL_CONTENT)
+          .header(HttpHeaders.CONTENT_LENGTH, range.length())
+          .header("Content-Range", range.contentRange(size));
+    } else {
+      builder = multipart(ranges, size, contentType, body);
+    }
+    builder.header("Accept-Ranges", "bytes");
+    if (etag != null) {
+      builder.header(HttpHeaders.ETAG, etag);
+    }
+    if (lastModified != null) {
+      builder.header(HttpHeaders.LAST_MODIFIED, lastModified);
+    }
+    return builder.build();
+  }
+
+  private static Response.ResponseBuilder multipart(List<Range> ranges, long size, String contentType,
+      Body body) {
+    String boundary = UUID.randomUUID().toString().replace("-", "");
+    List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+    long length = 0;
+    for (Range range : ranges) {
+      byte[] header = ("\r\n--" + boundary + "\r\nContent-Type: " + contentType + "\r\nContent-Range: "
+          + range.contentRange(size) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+      partHeaders.add(header);
+      length += header.length + range.length();
+    }
+    byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    length += closing.length;
+    StreamingOutput stream = StreamStats.track(output -> {
+      for (int i = 0; i < ranges.size(); i++) {
+        output.write(partHeaders.get(i));
+        body.write(ranges.get(i).first, ranges.get(i).length(), output);
+      }
+      output.write(closing);
+      output.flush();
+    });
+    return Response.ok(stream, "multipart/byteranges; boundary=" + boundary)
+        .status(Response.Status.PARTIAL_CONTENT)
+        .header(HttpHeaders.CONTENT_LENGTH, length);
+  }
+}
@@ -0,0 +1,161 @@
+package com.mkyong;
+
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded executor for the blocking database work of the endpoints.
+ *
+ * Resources return the {@link CompletionStage} from {@link #submit}, so Jetty's
+ * request threads are released while MariaDB works. Results are handed back on
+ * Jetty's thread pool, so a DB thread never writes a response body. Only JDBC
+ * work belongs in {@link #submit}; bucket or file calls are chained on the
+ * returned stage so a slow bucket cannot hold a DB thread. When the
+ * queue is full, or the work has not finished within {@code db.executor.timeoutMs},
+ * the request fails fast with 503 instead of piling up.
+ */
+public class DbExecutor {
+
+  // by default one thread per pooled connection, so DB threads never queue for a connection
+  static final int THREADS = Integer.getInteger("db.executor.threads",
+      Integer.getInteger("db.pool.maxSize", 16));
+  static final int QUEUE_SIZE = Integer.getInteger("db.executor.queueSize", 256);
+  static final long TIMEOUT_MS = Long.getLong("db.executor.timeoutMs", 10000L);
+
+  private static final ThreadPoolExecutor pool;
+  private static final ScheduledThreadPoolExecutor timer;
+  private static volatile Executor responseExecutor = Runnable::run;
+
+  private static final AtomicLong submitted = new AtomicLong();
+  private static final AtomicLong completed = new AtomicLong();
+  private static final AtomicLong failed = new AtomicLong();
+  private static final AtomicLong rejected = new AtomicLong();
+  private static final AtomicLong timeouts = new AtomicLong();
+  private static final AtomicLong skipped = new AtomicLong();
+  private static final AtomicLong queueMicros = new AtomicLong();
+  private static final AtomicLong maxQueueMicros = new AtomicLong();
+  private static final AtomicLong runMicros = new AtomicLong();
+
+  static {
+    AtomicInteger threadId = new AtomicInteger();
+    pool = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE),
+        r -> {
+          Thread t = new Thread(r, "db-executor-" + threadId.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+    timer = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread t = new Thread(r, "db-executor-timeout");
+      t.setDaemon(true);
+      return t;
+    });
+    timer.setRemoveOnCancelPolicy(true);
+  }
+
+  private DbExecutor() {
+  }
+
+  /** Completes results on {@code executor} (Jetty's thread pool) instead of the DB thread. */
+  public static void start(Executor executor) {
+    if (executor != null) {
+      responseExecutor = executor;
+    }
+  }
+
+  /**
+   * Runs {@code work} on a DB thread. The stage fails with a 503
+   * {@link WebApplicationException} if the executor is saturated or the work
+   * times out, and with the thrown exception otherwise.
+   */
+  public static <T> CompletionStage<T> submit(Callable<T> work) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    long queuedAt = System.nanoTime();
+    submitted.incrementAndGet();
+    try {
+      pool.execute(() -> run(work, result, queuedAt));
+    } catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      result.completeExceptionally(unavailable("Database busy, try again"));
+      return result;
+    }
+    ScheduledFuture<?> timeout = timer.schedule(() -> {
+      if (result.completeExceptionally(unavailable("Database timed out"))) {
+        timeouts.incrementAndGet();
+      }
+    }, TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    result.whenComplete((value, error) -> timeout.cancel(false));
+    return result;
+  }
+
+  private static <T> void run(Callable<T> work, CompletableFuture<T> result, long queuedAt) {
+    long started = System.nanoTime();
+    long waited = (started - queuedAt) / 1000;
+    queueMicros.addAndGet(waited);
+    maxQueueMicros.accumulateAndGet(waited, Math::max);
+    // the client already got its 503
+    if (result.isDone()) {
+      skipped.incrementAndGet();
+      return;
+    }
+    T value;
+    try {
+      value = work.call();
+    } catch (Exception | Error e) {
+      failed.incrementAndGet();
+      runMicros.addAndGet((System.nanoTime() - started) / 1000);
+      complete(() -> result.completeExceptionally(e));
+      return;
+    }
+    completed.incrementAndGet();
+    runMicros.addAndGet((System.nanoTime() - started) / 1000);
+    complete(() -> result.complete(value));
+  }
+
+  private static void complete(Runnable completion) {
+    try {
+      responseExecutor.execute(completion);
+    } catch (RejectedExecutionException e) {
+      completion.run();
+    }
+  }
+
+  private static WebApplicationException unavailable(String message) {
+    return new WebApplicationException(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+        .header("Retry-After", 1).entity(message).type(MediaType.TEXT_PLAIN).build());
+  }
+
+  public static void shutdown() {
+    pool.shutdown();
+    try {
+      pool.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    timer.shutdownNow();
+  }
+
+  public static String stats() {
+    long done = completed.get() + failed.get();
+    long started = done + skipped.get();
+    return String.format(
+        "dbExecutor threads=%d active=%d queued=%d/%d submitted=%d completed=%d failed=%d rejected=%d "
+            + "timeouts=%d skipped=%d avgQueueUs=%d maxQueueUs=%d avgRunUs=%d",
+        THREADS, pool.getActiveCount(), pool.getQueue().size(), QUEUE_SIZE, submitted.get(), completed.get(),
+        failed.get(), rejected.get(), timeouts.get(), skipped.get(),
+        started == 0 ? 0 : queueMicros.get() / started, maxQueueMicros.get(),
+        done == 0 ? 0 : runMicros.get() / done);
+  }
+}
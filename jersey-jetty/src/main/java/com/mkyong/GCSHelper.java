@@ -4,37 +4,67 @@ package com.mkyong;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.cloud.ReadChannel;
 import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
 import com.google.cloud.storage.StorageOptions;
 import com.mkyong.endpoints.Movies;
 
 import jakarta.ws.rs.core.Response;
-import jakarta.ws.rs.core.StreamingOutput;
 
 public class GCSHelper {
 
   public static Storage storage = StorageOptions.getDefaultInstance().getService();
   private static final String bucketName = "armazenamento-netflix"; // replace with your bucket
+  private static final GcsBlockCache blockCache = GcsBlockCache.create(GCSHelper::readRange);
+
+  // parallel ranged reads of all streams together
+  static final int MAX_UPSTREAM_READS = Integer.getInteger("stream.fetch.maxConnections", 32);
+  private static final long UPSTREAM_WAIT_MS = 30000;
+  private static final Semaphore upstreamReads = new Semaphore(MAX_UPSTREAM_READS);
+  private static final AtomicLong upstreamBytes = new AtomicLong();
+  private static final AtomicLong upstreamNanos = new AtomicLong();
+  private static final SingleFlight<String, BufferPool.Buffer> blockReads = new SingleFlight<>("videoBlocks",
+      new SingleFlight.Sharing<BufferPool.Buffer>() {
+        @Override
+        public boolean retain(BufferPool.Buffer block) {
+          return block.retain();
+        }
+
+        @Override
+        public void release(BufferPool.Buffer block) {
+          block.release();
+        }
+      });
 
   private GCSHelper() {
     // private constructor to prevent instantiation
   }
 
-  public static void upload(String objectName, File file, String contentType) throws IOException {
+  public static GcsObject upload(String objectName, File file, String contentType) throws IOException {
     BlobId blobId = BlobId.of(bucketName, objectName);
     BlobInfo blobInfo = BlobInfo.newBuilder(blobId).setContentType(contentType).build();
 
     // deeply simpler: read the file bytes directly from the path
-    storage.create(blobInfo, java.nio.file.Files.readAllBytes(file.toPath()));
+    Blob blob = storage.create(blobInfo, java.nio.file.Files.readAllBytes(file.toPath()));
+    return new GcsObject(objectName, blob.getSize(), blob.getGeneration());
+  }
+
+  public static String blockCacheStats() {
+    return blockCache != null ? blockCache.toString() : "blockCache disabled";
   }
 
   public static String getPublicUrl(String objectName) {
@@ -70,10 +100,32 @@ public class GCSHelper {
     return Channels.newInputStream(blob.reader());
   }
 
+  /** Name, size and generation of a bucket object, enough to stream it without another metadata call. */
+  public static final class GcsObject {
+    public final String name;
+    public final long size;
+    public final Long generation;
+
+    GcsObject(String name, long size, Long generation) {
+      this.name = name;
+      this.size = size;
+      this.generation = generation;
+    }
+  }
+
+  /** Looks up an object by path or public URL; null if it does not exist. */
+  public static GcsObject resolve(String objectName) {
+    objectName = objectName.replaceFirst("https://storage.googleapis.com/" + bucketName + "/", "");
+    Blob blob = storage.get(BlobId.of(bucketName, objectName));
+    if (blob == null) {
+      return null;
+    }
+    return new GcsObject(objectName, blob.getSize(), blob.getGeneration());
+  }
+
   /**
    * Stream a video from GCS supporting Range requests.
    *
-   * @param bucketName  The GCS bucket.
    * @param objectName  The object path in GCS.
    * @param rangeHeader The HTTP Range header (can be null).
    * @return Response with streaming output.
@@ -81,59 +133,150 @@ public class GCSHelper {
    */
 
   public static Response streamFromGcs(String objectName, String rangeHeader) throws Exception {
-    objectName = objectName.replaceFirst("https://storage.googleapis.com/" + bucketName + "/", "");
-    Blob blob = storage.get(BlobId.of(bucketName, objectName));
-    if (blob == null) {
+    GcsObject object = resolve(objectName);
+    if (object == null) {
       return Response.status(Response.Status.NOT_FOUND).entity("Video not found in GCS").build();
     }
+    return streamFromGcs(object, rangeHeader, null, ByteRanges.maxWindow());
+  }
+
+  /**
+   * Same as {@link #streamFromGcs(String, String)} for an already resolved object;
+   * {@code ifRange} is the If-Range header (can be null), and open-ended ranges
+   * are answered with at most {@code maxWindow} bytes (0 for no limit).
+   */
+  public static Response streamFromGcs(GcsObject object, String rangeHeader, String ifRange, long maxWindow)
+      throws Exception {
+    // the generation changes with every upload, so it is a strong validator
+    String etag = object.generation != null ? "\"" + object.generation + "\"" : null;
+    return ByteRanges.respond(rangeHeader, ifRange, etag, null, object.size, "video/mp4", maxWindow,
+        (start, length, output) -> writeObject(object, start, length, output));
+  }
+
+  private static void writeObject(GcsObject object, long start, long length, OutputStream output)
+      throws IOException {
+    try {
+      // playback start is served from memory when the head is cached
+      long served = HeadCache.write(object, start, length, output, GCSHelper::readHead);
+      if (served < length) {
+        writeBlocks(object, start + served, length - served, output);
+      }
+    } catch (IOException e) {
+      // the client library reports a failed read as an IOException caused by StorageException
+      if (e.getCause() instanceof StorageException) {
+        StreamResolutionCache.invalidateObject(object.name);
+      }
+      throw e;
+    } catch (StorageException e) {
+      // replaced or deleted since it was resolved; the next request resolves it again
+      StreamResolutionCache.invalidateObject(object.name);
+      throw new IOException("Failed to read " + object.name, e);
+    }
+  }
+
+  // writes the range block by block, reading the next blocks ahead while the client drains this one
+  private static void writeBlocks(GcsObject object, long start, long length, OutputStream output)
+      throws IOException {
+    long position = start;
+    long end = start + length;
+    try (ReadAhead blocks = new ReadAhead(index -> readBlock(object, index), GcsBlockCache.blockOf(start),
+        GcsBlockCache.blockOf(end - 1))) {
+      while (position < end) {
+        long index = GcsBlockCache.blockOf(position);
+        BufferPool.Buffer block = blocks.next();
+        try {
+          int offset = (int) (position - index * GcsBlockCache.BLOCK_SIZE);
+          int count = (int) Math.min(block.length - offset, end - position);
+          if (count <= 0) {
+            throw new IOException("Unexpected end of " + object.name + " at " + position);
+          }
+          output.write(block.array, offset, count);
+          position += count;
+        } finally {
+          block.release();
+        }
+      }
+    }
+  }
 
-    long blobSize = blob.getSize();
-    long start = 0;
-    long end = blobSize - 1;
+  // a block from the disk cache, or straight from the bucket without one; concurrent
+  // streams asking for the same block share one read
+  private static BufferPool.Buffer readBlock(GcsObject object, long index) throws IOException {
+    return blockReads.run(object.name + '#' + object.generation + '#' + index, () -> loadBlock(object, index));
+  }
+
+  private static BufferPool.Buffer loadBlock(GcsObject object, long index) throws IOException {
+    if (blockCache != null) {
+      return blockCache.read(object, index);
+    }
+    long offset = index * GcsBlockCache.BLOCK_SIZE;
+    return readRange(object, offset, (int) Math.min(GcsBlockCache.BLOCK_SIZE, object.size - offset));
+  }
 
-    // Parse Range header if present
-    if (rangeHeader != null && rangeHeader.startsWith("bytes=")) {
-      String[] parts = rangeHeader.replace("bytes=", "").split("-");
-      start = Long.parseLong(parts[0]);
-      if (parts.length > 1 && !parts[1].isEmpty()) {
-        end = Long.parseLong(parts[1]);
+  // the head of an object for HeadCache, through the block cache when there is one
+  private static byte[] readHead(GcsObject object) throws IOException {
+    int length = (int) Math.min(HeadCache.HEAD_BYTES, object.size);
+    byte[] head = new byte[length];
+    int position = 0;
+    while (position < length) {
+      BufferPool.Buffer block = readBlock(object, GcsBlockCache.blockOf(position));
+      int count = Math.min(block.length, length - position);
+      if (count > 0) {
+        System.arraycopy(block.array, 0, head, position, count);
+      }
+      block.release();
+      if (count <= 0) {
+        return Arrays.copyOf(head, position);
       }
+      position += count;
     }
+    return head;
+  }
 
-    long contentLength = end - start + 1;
-
-    // Wrap ReadChannel as InputStream
-    ReadChannel reader = blob.reader();
-    reader.seek(start);
-    InputStream inputStream = Channels.newInputStream(reader);
-    
-
-    StreamingOutput stream = output -> {
-      byte[] buffer = new byte[1024 * 1024]; // 1MB buffer
-      long bytesLeft = contentLength;
-      int read;
-      while (bytesLeft > 0 && (read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, bytesLeft))) != -1) {
-        output.write(buffer, 0, read);
-        bytesLeft -= read;
+  // one block-aligned ranged read; every upstream read of a stream goes through here
+  static BufferPool.Buffer readRange(GcsObject object, long offset, int length) throws IOException {
+    // the buffer first, so no bucket connection is held while waiting for memory
+    BufferPool.Buffer data = BufferPool.acquire(length);
+    try {
+      if (!upstreamReads.tryAcquire(UPSTREAM_WAIT_MS, TimeUnit.MILLISECONDS)) {
+        data.release();
+        throw new IOException("Too many concurrent bucket reads");
       }
-      output.flush();
-      inputStream.close();
-    };
-
-    if(rangeHeader != null){
-      return Response.ok(stream, "video/mp4")
-        .status(Response.Status.PARTIAL_CONTENT)
-        .header("Accept-Ranges", "bytes")
-        .header("Content-Length", contentLength)
-        .header("Content-Range", String.format("bytes %d-%d/%d", start, end, blobSize))
-        .build();
+    } catch (InterruptedException e) {
+      data.release();
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a bucket read", e);
     }
+    long started = System.nanoTime();
+    ByteBuffer target = ByteBuffer.wrap(data.array, 0, length);
+    try (ReadChannel reader = storage.reader(BlobId.of(bucketName, object.name, object.generation))) {
+      reader.seek(offset);
+      reader.limit(offset + length);
+      while (target.hasRemaining()) {
+        if (reader.read(target) < 0) {
+          break;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      data.release();
+      if (e instanceof StorageException) {
+        throw new IOException("Failed to read " + object.name + " at " + offset, e);
+      }
+      throw e;
+    } finally {
+      upstreamReads.release();
+      upstreamBytes.addAndGet(target.position());
+      upstreamNanos.addAndGet(System.nanoTime() - started);
+    }
+    data.length = target.position();
+    return data;
+  }
 
-    return Response.ok(stream, "video/mp4")
-        .status(Response.Status.OK)
-        .header("Accept-Ranges", "bytes")
-        .header("Content-Length", contentLength)
-        .build();
+  public static String upstreamStats() {
+    long nanos = upstreamNanos.get();
+    return String.format("bucketReads inFlight=%d/%d mb=%d perConnectionMbps=%.1f%n%s",
+        MAX_UPSTREAM_READS - upstreamReads.availablePermits(), MAX_UPSTREAM_READS, upstreamBytes.get() >> 20,
+        nanos == 0 ? 0.0 : upstreamBytes.get() * 8 * 1000.0 / nanos, blockReads);
   }
 
 }
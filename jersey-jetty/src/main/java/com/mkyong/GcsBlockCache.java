@@ -0,0 +1,246 @@
+package com.mkyong;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of fixed-size blocks of bucket objects on local disk.
+ *
+ * Objects are split into {@code stream.blockCache.blockKb} blocks; a range
+ * request reads the blocks it overlaps and fetches only the missing ones from
+ * the bucket, block aligned. Blocks are keyed by object name and generation, so
+ * a re-uploaded rendition never mixes with the old one; stale generations just
+ * age out. The directory is the index: a block is written to a temporary file
+ * and atomically moved into place, so after a crash every block file is
+ * complete and leftover temporary files are deleted on startup. Least recently
+ * used blocks are evicted beyond {@code stream.blockCache.maxMb}.
+ */
+public class GcsBlockCache {
+
+  static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("stream.blockCache.enabled", "true"));
+  static final String DIR = System.getProperty("stream.blockCache.dir", "./cache/blocks");
+  static final int BLOCK_SIZE = Integer.getInteger("stream.blockCache.blockKb", 1024) * 1024;
+  static final long MAX_BYTES = Long.getLong("stream.blockCache.maxMb", 2048L) * 1024 * 1024;
+
+  private static final String BLOCK_SUFFIX = ".blk";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /** Reads {@code length} bytes of {@code object} at {@code offset} from the bucket into a pooled buffer. */
+  interface Fetcher {
+    BufferPool.Buffer fetch(GCSHelper.GcsObject object, long offset, int length) throws IOException;
+  }
+
+  private final Path root;
+  private final Fetcher fetcher;
+  // block file (relative to root) -> size, in access order
+  private final LinkedHashMap<String, Long> blocks = new LinkedHashMap<>(1024, 0.75f, true);
+  private long bytes = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong bytesFetched = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong writeFailures = new AtomicLong();
+
+  GcsBlockCache(Path root, Fetcher fetcher) throws IOException {
+    this.root = root;
+    this.fetcher = fetcher;
+    Files.createDirectories(root);
+    load();
+  }
+
+  /** The cache configured by the system properties, or null when disabled or unusable. */
+  static GcsBlockCache create(Fetcher fetcher) {
+    if (!ENABLED) {
+      return null;
+    }
+    try {
+      GcsBlockCache cache = new GcsBlockCache(Paths.get(DIR), fetcher);
+      System.out.println(cache);
+      return cache;
+    } catch (IOException e) {
+      System.err.println("Block cache disabled, cannot use " + DIR + ": " + e);
+      return null;
+    }
+  }
+
+  // rebuilds the index from the directory, oldest files first so they are evicted first
+  private void load() throws IOException {
+    List<Object[]> found = new ArrayList<>();
+    try (DirectoryStream<Path> objects = Files.newDirectoryStream(root)) {
+      for (Path objectDir : objects) {
+        if (!Files.isDirectory(objectDir)) {
+          continue;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(objectDir)) {
+          for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (!name.endsWith(BLOCK_SUFFIX)) {
+              // an interrupted write
+              Files.deleteIfExists(file);
+              continue;
+            }
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            found.add(new Object[] { root.relativize(file).toString(), attributes.size(),
+                attributes.lastModifiedTime().toMillis() });
+          }
+        }
+      }
+    }
+    found.sort((a, b) -> Long.compare((Long) a[2], (Long) b[2]));
+    synchronized (blocks) {
+      for (Object[] block : found) {
+        blocks.put((String) block[0], (Long) block[1]);
+        bytes += (Long) block[1];
+      }
+    }
+    evict();
+  }
+
+  private static String objectKey(GCSHelper.GcsObject object) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest.digest(object.name.getBytes(StandardCharsets.UTF_8))) {
+        sb.append(String.format("%02x", b));
+      }
+      return sb.append('-').append(object.generation != null ? object.generation : 0).toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Number of the block holding byte {@code position}. */
+  static long blockOf(long position) {
+    return position / BLOCK_SIZE;
+  }
+
+  /** Block {@code index} of {@code object}, which the caller releases; the last block of an object is shorter. */
+  BufferPool.Buffer read(GCSHelper.GcsObject object, long index) throws IOException {
+    String key = objectKey(object) + "/" + index + BLOCK_SUFFIX;
+    Long size;
+    synchronized (blocks) {
+      size = blocks.get(key);
+    }
+    if (size != null) {
+      BufferPool.Buffer block = BufferPool.acquire(size.intValue());
+      try (FileChannel channel = FileChannel.open(root.resolve(key), StandardOpenOption.READ)) {
+        ByteBuffer target = ByteBuffer.wrap(block.array, 0, block.length);
+        while (target.hasRemaining()) {
+          if (channel.read(target) < 0) {
+            throw new IOException("Truncated block " + key);
+          }
+        }
+        hits.incrementAndGet();
+        return block;
+      } catch (IOException e) {
+        // removed or damaged behind our back; fetch it again
+        block.release();
+        forget(key);
+      }
+    }
+    misses.incrementAndGet();
+    long offset = index * BLOCK_SIZE;
+    int length = (int) Math.min(BLOCK_SIZE, object.size - offset);
+    if (length <= 0) {
+      return BufferPool.acquire(0);
+    }
+    BufferPool.Buffer block = fetcher.fetch(object, offset, length);
+    bytesFetched.addAndGet(block.length);
+    if (block.length == length) {
+      store(key, block);
+    }
+    return block;
+  }
+
+  private void store(String key, BufferPool.Buffer block) {
+    Path file = root.resolve(key);
+    Path temp = file.resolveSibling(file.getFileName() + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+    try {
+      Files.createDirectories(file.getParent());
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING)) {
+        ByteBuffer source = ByteBuffer.wrap(block.array, 0, block.length);
+        while (source.hasRemaining()) {
+          channel.write(source);
+        }
+      }
+      Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      // a full or failing disk costs a refetch, not the stream
+      writeFailures.incrementAndGet();
+      try {
+        Files.deleteIfExists(temp);
+      } catch (IOException ignored) {
+      }
+      return;
+    }
+    synchronized (blocks) {
+      Long previous = blocks.put(key, (long) block.length);
+      bytes += block.length - (previous != null ? previous : 0);
+    }
+    evict();
+  }
+
+  private void forget(String key) {
+    synchronized (blocks) {
+      Long size = blocks.remove(key);
+      if (size != null) {
+        bytes -= size;
+      }
+    }
+  }
+
+  private void evict() {
+    List<String> victims = new ArrayList<>();
+    synchronized (blocks) {
+      Iterator<Map.Entry<String, Long>> it = blocks.entrySet().iterator();
+      while (bytes > MAX_BYTES && it.hasNext()) {
+        Map.Entry<String, Long> eldest = it.next();
+        bytes -= eldest.getValue();
+        victims.add(eldest.getKey());
+        it.remove();
+      }
+    }
+    for (String key : victims) {
+      Path file = root.resolve(key);
+      try {
+        Files.deleteIfExists(file);
+        // drop the object directory with its last block; fails harmlessly while it is not empty
+        Files.deleteIfExists(file.getParent());
+      } catch (IOException ignored) {
+      }
+      evictions.incrementAndGet();
+    }
+  }
+
+  @Override
+  public String toString() {
+    int count;
+    long size;
+    synchronized (blocks) {
+      count = blocks.size();
+      size = bytes;
+    }
+    return String.format("blockCache dir=%s blocks=%d sizeMb=%d/%d hits=%d misses=%d fetchedMb=%d evictions=%d "
+        + "writeFailures=%d", root, count, size >> 20, MAX_BYTES >> 20, hits.get(), misses.get(),
+        bytesFetched.get() >> 20, evictions.get(), writeFailures.get());
+  }
+}
@@ -0,0 +1,180 @@
+package com.mkyong;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap copy of the first {@code stream.headCache.headMb} of video renditions.
+ *
+ * The first range requests of a playback (the moov atom and the opening
+ * seconds) decide how fast it starts; with the head in memory they are served
+ * without touching disk or the bucket. Heads are stored in direct buffers, so
+ * they cost no GC time however large the budget. A head is loaded when a
+ * rendition is uploaded through this node, or in the background the first time
+ * it is streamed. Least recently streamed heads are dropped beyond
+ * {@code stream.headCache.maxMb}.
+ */
+public class HeadCache {
+
+  static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("stream.headCache.enabled", "true"));
+  static final int HEAD_BYTES = Integer.getInteger("stream.headCache.headMb", 4) * 1024 * 1024;
+  static final long MAX_BYTES = Long.getLong("stream.headCache.maxMb", 256L) * 1024 * 1024;
+
+
+  /** Reads the head of an object, at most {@link #HEAD_BYTES}. */
+  interface Loader {
+    byte[] load(GCSHelper.GcsObject object) throws IOException;
+  }
+
+  // name#generation -> head, in access order
+  private static final LinkedHashMap<String, ByteBuffer> heads = new LinkedHashMap<>(64, 0.75f, true);
+  private static long bytes = 0;
+
+  private static final Set<String> loading = ConcurrentHashMap.newKeySet();
+  private static final ThreadPoolExecutor loader = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(64), r -> {
+        Thread t = new Thread(r, "head-cache-loader");
+        t.setDaemon(true);
+        return t;
+      });
+
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong bytesServed = new AtomicLong();
+  private static final AtomicLong loads = new AtomicLong();
+  private static final AtomicLong evictions = new AtomicLong();
+
+  private HeadCache() {
+  }
+
+  private static String key(GCSHelper.GcsObject object) {
+    return object.name + '#' + object.generation;
+  }
+
+  /**
+   * Writes the part of [{@code start}, {@code start + length}) that lies in the
+   * cached head and returns its size. When the head is not cached yet, it is
+   * loaded in the background with {@code source} and 0 is returned.
+   */
+  static long write(GCSHelper.GcsObject object, long start, long length, OutputStream output, Loader source)
+      throws IOException {
+    if (!ENABLED || start >= HEAD_BYTES) {
+      return 0;
+    }
+    String key = key(object);
+    ByteBuffer head;
+    synchronized (heads) {
+      head = heads.get(key);
+    }
+    if (head == null) {
+      misses.incrementAndGet();
+      loadAsync(object, source);
+      return 0;
+    }
+    hits.incrementAndGet();
+    if (start >= head.capacity()) {
+      return 0;
+    }
+    // each stream reads its own view of the shared buffer
+    ByteBuffer view = head.duplicate();
+    view.position((int) start);
+    view.limit((int) Math.min(view.capacity(), start + length));
+    int served = view.remaining();
+    BufferPool.Buffer chunk = BufferPool.acquire(Math.min(BufferPool.HEAD_COPY_SIZE, served));
+    try {
+      while (view.hasRemaining()) {
+        int count = Math.min(chunk.length, view.remaining());
+        view.get(chunk.array, 0, count);
+        output.write(chunk.array, 0, count);
+      }
+    } finally {
+      chunk.release();
+    }
+    bytesServed.addAndGet(served);
+    return served;
+  }
+
+  /** Loads the head of a rendition from the local file it was just uploaded from. */
+  public static void load(GCSHelper.GcsObject object, File file) {
+    if (!ENABLED || object == null) {
+      return;
+    }
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer head = ByteBuffer.allocateDirect((int) Math.min(HEAD_BYTES, channel.size()));
+      while (head.hasRemaining()) {
+        if (channel.read(head) < 0) {
+          break;
+        }
+      }
+      head.flip();
+      put(key(object), head.slice());
+    } catch (IOException e) {
+      System.err.println("Unable to cache head of " + object.name + ": " + e);
+    }
+  }
+
+  private static void loadAsync(GCSHelper.GcsObject object, Loader source) {
+    String key = key(object);
+    if (!loading.add(key)) {
+      return;
+    }
+    try {
+      loader.execute(() -> {
+        try {
+          byte[] data = source.load(object);
+          ByteBuffer head = ByteBuffer.allocateDirect(data.length);
+          head.put(data).flip();
+          put(key, head);
+        } catch (IOException | RuntimeException e) {
+          System.err.println("Unable to cache head of " + object.name + ": " + e);
+        } finally {
+          loading.remove(key);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the loader is busy; a later request asks again
+      loading.remove(key);
+    }
+  }
+
+  private static void put(String key, ByteBuffer head) {
+    loads.incrementAndGet();
+    synchronized (heads) {
+      ByteBuffer previous = heads.put(key, head);
+      bytes += head.capacity() - (previous != null ? previous.capacity() : 0);
+      // the direct memory is released by the GC once no stream holds a view any more
+      Iterator<Map.Entry<String, ByteBuffer>> it = heads.entrySet().iterator();
+      while (bytes > MAX_BYTES && it.hasNext()) {
+        bytes -= it.next().getValue().capacity();
+        it.remove();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  public static String stats() {
+    int count;
+    long size;
+    synchronized (heads) {
+      count = heads.size();
+      size = bytes;
+    }
+    return String.format("headCache heads=%d sizeMb=%d/%d hits=%d misses=%d servedMb=%d loads=%d evictions=%d",
+        count, size >> 20, MAX_BYTES >> 20, hits.get(), misses.get(), bytesServed.get() >> 20, loads.get(),
+        evictions.get());
+  }
+}
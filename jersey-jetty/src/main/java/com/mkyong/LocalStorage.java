@@ -0,0 +1,66 @@
+package com.mkyong;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.server.Response;
+
+/**
+ * Videos served from the local filesystem instead of the bucket.
+ *
+ * With {@code stream.storage=local} a rendition is the file
+ * {@code <stream.local.dir>/<name>/<resolution>.mp4}. Its bytes are memory
+ * mapped and handed straight to Jetty's connection, so they go from the page
+ * cache to the socket without being copied into the heap; see
+ * {@link MediaStreamer}.
+ */
+public final class LocalStorage {
+
+  public static final boolean ENABLED = "local".equalsIgnoreCase(System.getProperty("stream.storage", "gcs"));
+  static final String DIR = System.getProperty("stream.local.dir", "./res/videos");
+  static final boolean ZERO_COPY = Boolean.parseBoolean(System.getProperty("stream.local.zeroCopy", "true"));
+
+  private LocalStorage() {
+  }
+
+  /** The file of one rendition, or null when there is none. */
+  public static File video(String name, int resolution) {
+    if (name == null || name.isEmpty() || name.contains("..") || name.contains("/") || name.contains("\\")) {
+      return null;
+    }
+    File file = new File(new File(DIR, name), resolution + ".mp4");
+    return file.isFile() ? file : null;
+  }
+
+  /**
+   * The connection behind a Jetty response as a channel, or null when zero-copy
+   * streaming is off. Large direct buffers written to it bypass Jetty's
+   * aggregation buffer and go to the socket as they are.
+   */
+  public static WritableByteChannel connection(Response response) {
+    if (!ZERO_COPY || response == null) {
+      return null;
+    }
+    HttpOutput output = response.getHttpOutput();
+    return new WritableByteChannel() {
+      @Override
+      public int write(ByteBuffer src) throws IOException {
+        int count = src.remaining();
+        output.write(src);
+        return count;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return !output.isClosed();
+      }
+
+      @Override
+      public void close() {
+        // the response owns the output
+      }
+    };
+  }
+}
@@ -40,7 +40,8 @@ public class MainApp {
     } // final ResourceConfig config = new ResourceConfig().packages("com.mkyong");
     Class<?>[] set = { com.mkyong.endpoints.Users.class, com.mkyong.endpoints.Movies.class,
         com.mkyong.endpoints.Profiles.class, com.mkyong.endpoints.Progress.class,
-        com.mkyong.endpoints.UploadService.class, com.mkyong.endpoints.CmsAuth.class };
+        com.mkyong.endpoints.UploadService.class, com.mkyong.endpoints.CmsAuth.class,
+        com.mkyong.endpoints.Metrics.class };
     final ResourceConfig config = new ResourceConfig(set);
     final Server server = JettyHttpContainerFactory.createServer(URI.create(BASE_URI), config);
     for (Connector con : server.getConnectors()) {
@@ -63,17 +64,26 @@ public class MainApp {
       System.out.println("Unable to init database");
       return;
     }
+    if (ProgressStores.init() == false) {
+      System.out.println("Unable to init progress store");
+      Mariadb.shutdown();
+      return;
+    }
 
     try {
 
       final Server server = startServer();
       if (server == null)
         return;
+      DbExecutor.start(server.getThreadPool());
       Runtime.getRuntime().addShutdownHook(new Thread(() -> {
         try {
           System.out.println("Shutting down the application...");
           server.stop();
           server.destroy();
+          DbExecutor.shutdown();
+          ProgressStores.shutdown();
+          Mariadb.shutdown();
           System.out.println("Done, exit.");
         } catch (Exception e) {
           Logger.getLogger(MainApp.class.getName()).log(Level.SEVERE, null, e);
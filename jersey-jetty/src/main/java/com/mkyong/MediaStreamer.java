@@ -1,64 +1,94 @@
 package com.mkyong;
 
 import jakarta.ws.rs.core.StreamingOutput;
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Media streaming utility
  *
+ * Stops at the first failed write: the viewer is gone, so the file is closed
+ * instead of being read to the end of the range.
+ *
+ * Given the connection as a channel, the range is memory mapped and written to
+ * it directly: the bytes go from the page cache to the socket without a copy
+ * into the heap. Otherwise it is copied through a pooled buffer.
+ *
  * @author Arul Dhesiaseelan (arul@httpmine.org)
  */
 public class MediaStreamer implements StreamingOutput {
 
-    private int length;
+    // mapped at a time, so a long range does not pin the whole file in the address space
+    private static final long MAP_SIZE = 16L * 1024 * 1024;
+
+    private long length;
     private final RandomAccessFile raf;
-    final byte[] buf = new byte[4096];
+    private final WritableByteChannel connection;
 
-    public MediaStreamer(int length, RandomAccessFile raf) {
+    public MediaStreamer(long length, RandomAccessFile raf) {
+        this(length, raf, null);
+    }
+
+    public MediaStreamer(long length, RandomAccessFile raf, WritableByteChannel connection) {
         this.length = length;
         this.raf = raf;
+        this.connection = connection;
     }
 
     @Override
-    public void write(OutputStream outputStream) {
+    public void write(OutputStream outputStream) throws IOException {
         try {
-            while (length != 0) {
-                int read = 0;
-                try {
-                    read = raf.read(buf, 0, buf.length > length ? length : buf.length);
-                    if(read == -1) break;
-                    length -= read;
-                } catch (IOException ex) {
-                    try {
-                        System.err.printf("Error while reading from raf:FileSize = %d, read = %d, length = %d, error = "+ex.toString()+'\n',raf.length(),read,length);
-                    } catch (IOException ex1) {
-                    }
-                }
-                try {
-                    outputStream.write(buf, 0, read);
-                }
-                catch (EOFException ex) {
-                }
-                 catch (IOException ex) {
-                        System.err.printf("Error while writing to OutStream:read = %d, length = %d, error = "+ex.toString()+'\n',read,length);
-
-                }
-
+            if (connection != null) {
+                transfer(raf.getChannel());
+            } else {
+                copy(outputStream);
             }
         } finally {
             try {
-              raf.close();
+                raf.close();
             } catch (IOException ex) {
                 System.err.println("Error while closing raf/output stream");
+            }
+        }
+    }
+
+    private void transfer(FileChannel file) throws IOException {
+        long position = file.position();
+        while (length != 0) {
+            long count = Math.min(Math.min(length, MAP_SIZE), file.size() - position);
+            if (count <= 0) {
+                break;
+            }
+            MappedByteBuffer region = file.map(FileChannel.MapMode.READ_ONLY, position, count);
+            while (region.hasRemaining()) {
+                connection.write(region);
+            }
+            position += count;
+            length -= count;
+        }
+    }
 
+    private void copy(OutputStream outputStream) throws IOException {
+        BufferPool.Buffer buf = BufferPool.acquire(BufferPool.LOCAL_FILE_SIZE);
+        try {
+            while (length != 0) {
+                int read = raf.read(buf.array, 0, (int) Math.min(buf.length, length));
+                if (read == -1) {
+                    break;
+                }
+                length -= read;
+                outputStream.write(buf.array, 0, read);
             }
+        } finally {
+            buf.release();
         }
     }
 
-    public int getLength() {
+    public long getLength() {
         return length;
     }
 }
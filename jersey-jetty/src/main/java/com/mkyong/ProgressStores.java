@@ -0,0 +1,53 @@
+package com.mkyong;
+
+import com.cassandra.CassandraProgressStore;
+import com.mariadb.InMemoryProgressStore;
+import com.mariadb.ProgressRepository;
+import com.mariadb.ProgressStore;
+
+/**
+ * Holds the {@link ProgressStore} chosen with {@code -Dprogress.store}:
+ * {@code mariadb} (default), {@code cassandra} or {@code memory}.
+ */
+public class ProgressStores {
+
+  static final String STORE = System.getProperty("progress.store", "mariadb");
+
+  private static ProgressStore store = new ProgressRepository();
+
+  private ProgressStores() {
+  }
+
+  /** Opens the configured store; returns false if it cannot be reached. */
+  public static boolean init() {
+    try {
+      switch (STORE) {
+        case "mariadb":
+          store = new ProgressRepository();
+          break;
+        case "cassandra":
+          store = new CassandraProgressStore();
+          break;
+        case "memory":
+          store = new InMemoryProgressStore();
+          break;
+        default:
+          System.out.println("Unknown progress.store " + STORE + ", expected mariadb, cassandra or memory");
+          return false;
+      }
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+      return false;
+    }
+    System.out.println("Progress store: " + STORE);
+    return true;
+  }
+
+  public static ProgressStore get() {
+    return store;
+  }
+
+  public static void shutdown() {
+    store.close();
+  }
+}
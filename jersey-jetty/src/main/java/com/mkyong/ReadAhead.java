@@ -0,0 +1,227 @@
+package com.mkyong;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the blocks of one stream in order while keeping the next ones in flight.
+ *
+ * Following blocks are fetched in parallel on the shared
+ * {@code stream.readAhead.threads} pool while the request thread writes the
+ * current one to the client, each over its own storage connection. How many
+ * are in flight adapts per stream: it starts at {@code stream.readAhead.blocks}
+ * and follows the ratio of the observed time to fetch a block to the time the
+ * client takes to drain one, up to {@code stream.readAhead.maxBlocks}. A fast
+ * client on a slow connection gets more parallel readers; a slow client keeps
+ * few. A new block is only requested when the consumer takes one, so storage
+ * reads wait for the socket.
+ */
+public final class ReadAhead implements Closeable {
+
+  static final int DEPTH = Integer.getInteger("stream.readAhead.blocks", 4);
+  static final int MAX_DEPTH = Math.max(DEPTH, Integer.getInteger("stream.readAhead.maxBlocks", 16));
+  static final int THREADS = Integer.getInteger("stream.readAhead.threads", 32);
+
+  /** Reads one block of the stream; the caller releases it. */
+  interface BlockReader {
+    BufferPool.Buffer read(long index) throws IOException;
+  }
+
+  private static final ThreadPoolExecutor pool;
+
+  private static final AtomicLong prefetched = new AtomicLong();
+  private static final AtomicLong waits = new AtomicLong();
+  private static final AtomicLong discarded = new AtomicLong();
+  private static final AtomicInteger deepest = new AtomicInteger();
+
+  static {
+    AtomicInteger threadId = new AtomicInteger();
+    pool = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+      Thread t = new Thread(r, "stream-read-ahead-" + threadId.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    pool.allowCoreThreadTimeOut(true);
+  }
+
+  private final BlockReader reader;
+  private final long last;
+  private final ArrayDeque<Slot> window = new ArrayDeque<>();
+  private long nextToRequest;
+  private int depth = DEPTH;
+  // moving averages in nanoseconds per block
+  private double fetchNanos = 0;
+  private double drainNanos = 0;
+  private long returnedAt = 0;
+
+  // one block being read; hands the buffer either to the consumer or, once abandoned, back to the pool
+  private final class Slot implements Runnable {
+    final long index;
+    private BufferPool.Buffer block;
+    private Throwable error;
+    private long nanos;
+    private boolean started = false;
+    private boolean done = false;
+    private boolean abandoned = false;
+
+    Slot(long index) {
+      this.index = index;
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        if (started || abandoned) {
+          return;
+        }
+        started = true;
+      }
+      long begin = System.nanoTime();
+      BufferPool.Buffer result = null;
+      Throwable failure = null;
+      try {
+        result = reader.read(index);
+      } catch (IOException | RuntimeException e) {
+        failure = e;
+      }
+      synchronized (this) {
+        if (abandoned) {
+          if (result != null) {
+            result.release();
+          }
+        } else {
+          block = result;
+          error = failure;
+          nanos = System.nanoTime() - begin;
+        }
+        done = true;
+        notifyAll();
+      }
+    }
+
+    synchronized boolean isDone() {
+      return done;
+    }
+
+    synchronized BufferPool.Buffer take() throws IOException {
+      while (!done) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while reading ahead", e);
+        }
+      }
+      if (error instanceof IOException) {
+        throw (IOException) error;
+      }
+      if (error != null) {
+        throw (RuntimeException) error;
+      }
+      BufferPool.Buffer taken = block;
+      block = null;
+      return taken;
+    }
+
+    // true when the read never started
+    synchronized boolean abandon() {
+      abandoned = true;
+      if (block != null) {
+        block.release();
+        block = null;
+      }
+      return !started;
+    }
+  }
+
+  /** Blocks {@code first} to {@code last}, inclusive. */
+  ReadAhead(BlockReader reader, long first, long last) {
+    this.reader = reader;
+    this.last = last;
+    this.nextToRequest = first;
+    fill();
+  }
+
+  private void fill() {
+    // the block being consumed plus depth ahead of it
+    while (window.size() <= depth && nextToRequest <= last) {
+      Slot slot = new Slot(nextToRequest++);
+      if (DEPTH > 0) {
+        try {
+          pool.execute(slot);
+          prefetched.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+          slot.run();
+        }
+      }
+      window.add(slot);
+    }
+  }
+
+  /** The next block in order, waiting for it if it is still being fetched; the caller releases it. */
+  BufferPool.Buffer next() throws IOException {
+    Slot current = window.poll();
+    if (current == null) {
+      throw new IOException("Read past the last block");
+    }
+    long now = System.nanoTime();
+    if (returnedAt != 0) {
+      drainNanos = average(drainNanos, now - returnedAt);
+    }
+    if (DEPTH == 0) {
+      current.run();
+    } else if (!current.isDone()) {
+      waits.incrementAndGet();
+    }
+    try {
+      BufferPool.Buffer block = current.take();
+      fetchNanos = average(fetchNanos, current.nanos);
+      adapt();
+      return block;
+    } finally {
+      returnedAt = System.nanoTime();
+      fill();
+    }
+  }
+
+  private static double average(double average, long sample) {
+    return average == 0 ? sample : average * 0.75 + sample * 0.25;
+  }
+
+  // enough readers in parallel that a block is ready by the time the client wants it
+  private void adapt() {
+    if (DEPTH == 0 || drainNanos == 0) {
+      return;
+    }
+    int wanted = (int) Math.ceil(fetchNanos / drainNanos);
+    depth = Math.max(1, Math.min(MAX_DEPTH, wanted));
+    deepest.accumulateAndGet(depth, Math::max);
+  }
+
+  /**
+   * Drops the blocks the consumer will not take: reads not started yet are
+   * skipped, blocks already read go back to the pool.
+   */
+  @Override
+  public void close() {
+    Slot pending;
+    while ((pending = window.poll()) != null) {
+      if (pending.abandon()) {
+        discarded.incrementAndGet();
+      }
+    }
+  }
+
+  public static String stats() {
+    return String.format("readAhead depth=%d-%d deepest=%d threads=%d active=%d queued=%d prefetched=%d waits=%d "
+        + "discarded=%d", DEPTH, MAX_DEPTH, deepest.get(), THREADS, pool.getActiveCount(), pool.getQueue().size(),
+        prefetched.get(), waits.get(), discarded.get());
+  }
+}
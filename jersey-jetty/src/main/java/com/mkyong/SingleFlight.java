@@ -0,0 +1,102 @@
+package com.mkyong;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs at most one call per key at a time; callers asking for a key that is
+ * already being loaded wait for that call and share its result.
+ *
+ * On a premiere many viewers ask for the same blocks within moments of each
+ * other. The first request for a block reads it, the others attach to that read,
+ * so upstream reads grow with distinct blocks rather than with viewers. Results
+ * are reference counted: every caller gets its own reference and releases it.
+ * A caller attaching after the last reference was dropped simply reads again.
+ */
+final class SingleFlight<K, V> {
+
+  /** Loads the value of one key. */
+  interface Call<V> {
+    V call() throws IOException;
+  }
+
+  /** Reference counting of the shared values. */
+  interface Sharing<V> {
+    /** Takes a reference; false if the value is already gone. */
+    boolean retain(V value);
+
+    void release(V value);
+  }
+
+  private final String name;
+  private final Sharing<V> sharing;
+  private final ConcurrentHashMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+  private final AtomicLong leaders = new AtomicLong();
+  private final AtomicLong followers = new AtomicLong();
+
+  SingleFlight(String name, Sharing<V> sharing) {
+    this.name = name;
+    this.sharing = sharing;
+  }
+
+  V run(K key, Call<V> call) throws IOException {
+    while (true) {
+      CompletableFuture<V> mine = new CompletableFuture<>();
+      CompletableFuture<V> running = calls.putIfAbsent(key, mine);
+      if (running == null) {
+        return lead(key, mine, call);
+      }
+      V value = await(running);
+      if (sharing.retain(value)) {
+        followers.incrementAndGet();
+        return value;
+      }
+    }
+  }
+
+  private V lead(K key, CompletableFuture<V> mine, Call<V> call) throws IOException {
+    leaders.incrementAndGet();
+    V value;
+    try {
+      value = call.call();
+    } catch (IOException | RuntimeException | Error e) {
+      calls.remove(key, mine);
+      mine.completeExceptionally(e);
+      throw e;
+    }
+    // an extra reference keeps the value alive for callers attached while it was read
+    sharing.retain(value);
+    mine.complete(value);
+    calls.remove(key, mine);
+    sharing.release(value);
+    return value;
+  }
+
+  private static <V> V await(CompletableFuture<V> result) throws IOException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a shared read", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("singleFlight=%s inFlight=%d reads=%d shared=%d", name, calls.size(), leaders.get(),
+        followers.get());
+  }
+}
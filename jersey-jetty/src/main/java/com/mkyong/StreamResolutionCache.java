@@ -0,0 +1,120 @@
+package com.mkyong;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which storage object, size and generation a (title, resolution)
+ * resolves to.
+ *
+ * A playback issues dozens of range requests for the same rendition; with the
+ * entry cached, a seek starts streaming without a database lookup or a
+ * metadata call to the bucket. Entries are dropped when the movie is updated,
+ * deleted or re-uploaded here, and expire after
+ * {@code stream.resolutionCache.ttlMs} to pick up changes made through other
+ * nodes. Reads are pinned to the cached generation, so a stale entry fails
+ * instead of serving bytes that do not match the announced length.
+ */
+public class StreamResolutionCache {
+
+  static final int MAX_ENTRIES = Integer.getInteger("stream.resolutionCache.maxEntries", 4096);
+  static final long TTL_MS = Long.getLong("stream.resolutionCache.ttlMs", 300000L);
+
+  private static final class Resolution {
+    final GCSHelper.GcsObject object;
+    final long expiresAt;
+
+    Resolution(GCSHelper.GcsObject object, long expiresAt) {
+      this.object = object;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  // access ordered, so the eldest entry is the least recently streamed rendition
+  private static final Map<String, Resolution> entries = new LinkedHashMap<String, Resolution>(256, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Resolution> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong invalidations = new AtomicLong();
+
+  private StreamResolutionCache() {
+  }
+
+  // titles are matched case-insensitively, like the MOVIE.name column
+  private static String key(String name, int resolution) {
+    return name.toLowerCase(Locale.ROOT) + '/' + resolution;
+  }
+
+  /** The cached object for this title and resolution, or null. */
+  public static GCSHelper.GcsObject get(String name, int resolution) {
+    String key = key(name, resolution);
+    synchronized (entries) {
+      Resolution entry = entries.get(key);
+      if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+        hits.incrementAndGet();
+        return entry.object;
+      }
+      if (entry != null) {
+        entries.remove(key);
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  public static void put(String name, int resolution, GCSHelper.GcsObject object) {
+    Resolution entry = new Resolution(object, System.currentTimeMillis() + TTL_MS);
+    synchronized (entries) {
+      entries.put(key(name, resolution), entry);
+    }
+  }
+
+  /** Drops every resolution of a title. */
+  public static void invalidate(String name) {
+    if (name == null) {
+      return;
+    }
+    String prefix = name.toLowerCase(Locale.ROOT) + '/';
+    synchronized (entries) {
+      Iterator<String> it = entries.keySet().iterator();
+      while (it.hasNext()) {
+        String key = it.next();
+        // the rest of the key is the resolution; a longer title sharing the prefix has another '/'
+        if (key.startsWith(prefix) && key.indexOf('/', prefix.length()) < 0) {
+          it.remove();
+          invalidations.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /** Drops the entries resolving to {@code objectName}, e.g. after a read found it replaced. */
+  public static void invalidateObject(String objectName) {
+    synchronized (entries) {
+      Iterator<Resolution> it = entries.values().iterator();
+      while (it.hasNext()) {
+        if (it.next().object.name.equals(objectName)) {
+          it.remove();
+          invalidations.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  public static String stats() {
+    int size;
+    synchronized (entries) {
+      size = entries.size();
+    }
+    return String.format("streamResolutionCache entries=%d/%d hits=%d misses=%d invalidations=%d", size,
+        MAX_ENTRIES, hits.get(), misses.get(), invalidations.get());
+  }
+}
@@ -0,0 +1,130 @@
+package com.mkyong;
+
+import jakarta.ws.rs.core.StreamingOutput;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outcome of every video response body.
+ *
+ * A write to the client that fails means the viewer went away (closed the
+ * player, seeked, lost the connection). The failure is rethrown at once, which
+ * ends the read loop and closes the file or storage reads behind it, and the
+ * stream is counted as aborted. Other failures are upstream errors.
+ */
+public final class StreamStats {
+
+  private static final AtomicInteger active = new AtomicInteger();
+  private static final AtomicLong completed = new AtomicLong();
+  private static final AtomicLong aborted = new AtomicLong();
+  private static final AtomicLong failed = new AtomicLong();
+  private static final AtomicLong bytesSent = new AtomicLong();
+
+  private StreamStats() {
+  }
+
+  // remembers whether the client side failed, as opposed to the reads feeding it
+  private static final class ClientOutput extends FilterOutputStream {
+    boolean broken = false;
+    long written = 0;
+
+    ClientOutput(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      try {
+        out.write(b, off, len);
+        written += len;
+      } catch (IOException e) {
+        broken = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      try {
+        out.flush();
+      } catch (IOException e) {
+        broken = true;
+        throw e;
+      }
+    }
+  }
+
+  /** Counts the outcome of {@code body} and stops it as soon as the client is gone. */
+  static StreamingOutput track(StreamingOutput body) {
+    return output -> {
+      ClientOutput client = new ClientOutput(output);
+      active.incrementAndGet();
+      try {
+        body.write(client);
+        completed.incrementAndGet();
+      } catch (IOException | RuntimeException e) {
+        if (client.broken) {
+          aborted.incrementAndGet();
+        } else {
+          failed.incrementAndGet();
+        }
+        throw e;
+      } finally {
+        active.decrementAndGet();
+        bytesSent.addAndGet(client.written);
+      }
+    };
+  }
+
+  /**
+   * A channel to the connection behind {@code output} whose writes count as
+   * writes to {@code output}. Whatever was written to {@code output} before,
+   * headers included, is flushed first so the two never interleave.
+   */
+  public static WritableByteChannel direct(OutputStream output, WritableByteChannel connection) {
+    ClientOutput client = output instanceof ClientOutput ? (ClientOutput) output : null;
+    return new WritableByteChannel() {
+      @Override
+      public int write(ByteBuffer src) throws IOException {
+        output.flush();
+        try {
+          int count = connection.write(src);
+          if (client != null) {
+            client.written += count;
+          }
+          return count;
+        } catch (IOException e) {
+          if (client != null) {
+            client.broken = true;
+          }
+          throw e;
+        }
+      }
+
+      @Override
+      public boolean isOpen() {
+        return connection.isOpen();
+      }
+
+      @Override
+      public void close() {
+        // the response owns the connection
+      }
+    };
+  }
+
+  public static String stats() {
+    return String.format("streams active=%d completed=%d aborted=%d failed=%d sentMb=%d", active.get(),
+        completed.get(), aborted.get(), failed.get(), bytesSent.get() >> 20);
+  }
+}
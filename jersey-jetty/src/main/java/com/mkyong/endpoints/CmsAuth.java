@@ -2,6 +2,7 @@ package com.mkyong.endpoints;
 
 import com.mariadb.CmsUser;
 import com.mariadb.Mariadb;
+import com.mkyong.DbExecutor;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
@@ -9,6 +10,7 @@ import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.core.MediaType;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.concurrent.CompletionStage;
 
 @Path("/cms")
 public class CmsAuth implements endpoint {
@@ -22,22 +24,24 @@ public class CmsAuth implements endpoint {
   @Path("/login")
   @Consumes(MediaType.APPLICATION_JSON)
   @Produces(MediaType.APPLICATION_JSON)
-  public CmsUser login(LoginRequest request) {
-    if (request == null || request.username == null || request.password == null) {
-      return null;
-    }
-    String[] args = { request.username.trim(), request.password };
-    ResultSet result = Mariadb.queryDB("SELECT * FROM CMS_USER WHERE username = ? AND password = ?", args);
-    try {
-      if (result != null && result.next()) {
-        return new CmsUser(
-            result.getInt("id"),
-            result.getString("username"),
-            result.getString("password"));
+  public CompletionStage<CmsUser> login(LoginRequest request) {
+    return DbExecutor.submit(() -> {
+      if (request == null || request.username == null || request.password == null) {
+        return null;
+      }
+      ResultSet result = Mariadb.queryDB("SELECT * FROM CMS_USER WHERE username = ? AND password = ?",
+          request.username.trim(), request.password);
+      try {
+        if (result != null && result.next()) {
+          return new CmsUser(
+              result.getInt("id"),
+              result.getString("username"),
+              result.getString("password"));
+        }
+      } catch (SQLException se) {
+        return null;
       }
-    } catch (SQLException se) {
       return null;
-    }
-    return null;
+    });
   }
 }
@@ -0,0 +1,118 @@
+package com.mkyong.endpoints;
+
+import com.mkyong.DbExecutor;
+import jakarta.json.bind.Jsonb;
+import jakarta.json.bind.JsonbBuilder;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Keyset pagination and streaming for JSON list endpoints.
+ *
+ * A page is requested with {@code limit} and the cursor {@code after} (the id of
+ * the last element of the previous page). When more rows follow, the response
+ * carries the cursor for the next page in {@value #NEXT_CURSOR_HEADER}. In
+ * streaming mode the whole list is written as one JSON array, element by
+ * element, fetching {@value #STREAM_PAGE_SIZE} rows at a time so neither memory
+ * nor a database connection is held for the whole response. Pages are fetched
+ * on {@link DbExecutor}, the next one while the current one is written, so the
+ * thread writing the response never runs a query.
+ */
+final class JsonPages {
+
+  static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+  static final int MAX_LIMIT = 1000;
+  static final int STREAM_PAGE_SIZE = 500;
+
+  private static final Jsonb JSONB = JsonbBuilder.create();
+  private static final byte[] COMMA = { ',' };
+
+  /** Fetches up to {@code limit} rows whose cursor is greater than {@code after}, in cursor order. */
+  interface PageQuery<T> {
+    List<T> fetch(int after, int limit) throws SQLException;
+  }
+
+  interface Cursor<T> {
+    int of(T item);
+  }
+
+  private JsonPages() {
+  }
+
+  /** One page of at most {@code limit} elements, or 400 if the limit is out of range. */
+  static <T> Response page(PageQuery<T> query, Cursor<T> cursor, Integer after, int limit) throws SQLException {
+    if (limit <= 0 || limit > MAX_LIMIT) {
+      return Response.status(Response.Status.BAD_REQUEST)
+          .entity("limit must be between 1 and " + MAX_LIMIT).type(MediaType.TEXT_PLAIN).build();
+    }
+    // one extra row tells whether there is a next page
+    List<T> rows = query.fetch(after != null ? after : 0, limit + 1);
+    if (rows.size() <= limit) {
+      return Response.ok(rows).build();
+    }
+    List<T> page = rows.subList(0, limit);
+    return Response.ok(page).header(NEXT_CURSOR_HEADER, cursor.of(page.get(limit - 1))).build();
+  }
+
+  /**
+   * Every element after {@code after}, written as one JSON array. Called on a
+   * DB thread: the first page is read here, so a failing query is still a
+   * proper error response.
+   */
+  static <T> Response stream(PageQuery<T> query, Cursor<T> cursor, Integer after) throws SQLException {
+    List<T> firstPage = query.fetch(after != null ? after : 0, STREAM_PAGE_SIZE);
+    StreamingOutput body = output -> {
+      output.write('[');
+      boolean first = true;
+      List<T> rows = firstPage;
+      while (true) {
+        CompletableFuture<List<T>> next = null;
+        if (rows.size() == STREAM_PAGE_SIZE) {
+          int position = cursor.of(rows.get(rows.size() - 1));
+          next = DbExecutor.submit(() -> query.fetch(position, STREAM_PAGE_SIZE)).toCompletableFuture();
+        }
+        for (T row : rows) {
+          if (!first) {
+            output.write(COMMA);
+          }
+          first = false;
+          write(output, row);
+        }
+        if (next == null) {
+          break;
+        }
+        output.flush();
+        rows = await(next);
+      }
+      output.write(']');
+      output.flush();
+    };
+    return Response.ok(body, MediaType.APPLICATION_JSON).build();
+  }
+
+  // DbExecutor bounds the wait with its own timeout
+  private static <T> List<T> await(CompletableFuture<List<T>> page) throws IOException {
+    try {
+      return page.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while streaming rows", e);
+    } catch (ExecutionException e) {
+      // the status line is already sent; cut the array short so the client sees invalid JSON
+      e.getCause().printStackTrace();
+      throw new IOException("Failed to fetch rows while streaming", e.getCause());
+    }
+  }
+
+  private static void write(OutputStream output, Object row) throws IOException {
+    output.write(JSONB.toJson(row).getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,46 @@
+package com.mkyong.endpoints;
+
+import com.mariadb.Mariadb;
+import com.mkyong.BufferPool;
+import com.mkyong.DbExecutor;
+import com.mkyong.GCSHelper;
+import com.mkyong.HeadCache;
+import com.mkyong.ReadAhead;
+import com.mkyong.StreamResolutionCache;
+import com.mkyong.StreamStats;
+
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+
+/**
+ * Plain text dump of the backend counters: connection pools, DB executor,
+ * statement and query caches, progress buffer, batched lookups, video stream
+ * caches and buffers, and per-endpoint / per-statement SQL cost.
+ */
+@Path("/metrics")
+public class Metrics implements endpoint {
+
+  @GET
+  @Produces(MediaType.TEXT_PLAIN)
+  public String metrics() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(Mariadb.poolStats()).append('\n');
+    sb.append(DbExecutor.stats()).append('\n');
+    sb.append(Mariadb.statementCacheStats()).append('\n');
+    sb.append(Mariadb.queryCacheStats()).append('\n');
+    sb.append(Mariadb.progressBufferStats()).append('\n');
+    sb.append(Mariadb.progressArchiverStats()).append('\n');
+    sb.append(Mariadb.batchLoaderStats()).append('\n');
+    sb.append(StreamStats.stats()).append('\n');
+    sb.append(StreamResolutionCache.stats()).append('\n');
+    sb.append(HeadCache.stats()).append('\n');
+    sb.append(GCSHelper.blockCacheStats()).append('\n');
+    sb.append(ReadAhead.stats()).append('\n');
+    sb.append(BufferPool.stats()).append('\n');
+    sb.append(GCSHelper.upstreamStats()).append('\n');
+    sb.append(Mariadb.sqlStats()).append('\n');
+    return sb.toString();
+  }
+}
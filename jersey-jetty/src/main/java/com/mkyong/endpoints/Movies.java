@@ -1,9 +1,14 @@
 package com.mkyong.endpoints;
 
-import com.mariadb.Mariadb;
 import com.mariadb.Movie;
+import com.mariadb.MovieRepository;
+import com.mkyong.ByteRanges;
+import com.mkyong.DbExecutor;
 import com.mkyong.GCSHelper;
+import com.mkyong.LocalStorage;
 import com.mkyong.MediaStreamer;
+import com.mkyong.StreamResolutionCache;
+import com.mkyong.StreamStats;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.GET;
@@ -13,26 +18,24 @@ import jakarta.ws.rs.PUT;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
-import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
-import jakarta.ws.rs.core.StreamingOutput;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.net.URISyntaxException;
-import java.sql.ResultSet;
+import java.nio.channels.WritableByteChannel;
 import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import org.checkerframework.checker.units.qual.N;
 
 @Path("/movie")
 public class Movies implements endpoint {
-  private static final int BUFFER_SIZE = 1024 * 1024; // 1MB
+  private static final MovieRepository movies = new MovieRepository();
 
   public static class CreateMovieRequest {
     public String name;
@@ -51,223 +54,236 @@ public class Movies implements endpoint {
 
   @GET
   @Produces(MediaType.APPLICATION_JSON)
-  public Response getMovies() {
-    List<Movie> list = new ArrayList<>();
-
-    ResultSet result = Mariadb.queryDB("SELECT * FROM MOVIE");
-    try {
-      while (result.next()) {
-        String movieName = result.getString("name");
-        list.add(new Movie(result.getInt("id"), movieName, result.getString("description"),
-            result.getInt("genre"), result.getInt("year"), result.getString("videoPath"),
-            result.getString("thumbnailPath")));
+  public CompletionStage<Response> getMovies(@QueryParam("limit") Integer limit, @QueryParam("after") Integer after,
+      @QueryParam("stream") boolean stream) {
+    return DbExecutor.submit(() -> {
+      List<Movie> list;
+      try {
+        if (stream) {
+          return JsonPages.stream(movies::findPage, Movie::getId, after);
+        }
+        if (limit != null) {
+          return JsonPages.page(movies::findPage, Movie::getId, after, limit);
+        }
+        list = movies.findAll();
+      } catch (SQLException se) {
+        System.out.println("Fetch error");
+        return null;
       }
-    } catch (SQLException se) {
-      System.out.println("Fetch error");
-      return null;
-    }
-    System.out.println("Fetch success");
-    return Response.ok(list).build();
+      System.out.println("Fetch success");
+      return Response.ok(list).build();
+    });
   }
 
   @POST
   @Consumes(MediaType.APPLICATION_JSON)
   @Produces(MediaType.APPLICATION_JSON)
-  public Response createMovie(CreateMovieRequest request) {
-    if (request == null || request.name == null || request.videoPath == null || request.thumbnailPath == null) {
-      return Response.status(Response.Status.BAD_REQUEST).build();
-    }
-    String name = request.name.trim();
-    if (name.isEmpty()) {
-      return Response.status(Response.Status.BAD_REQUEST).build();
-    }
-    String[] existsArgs = { name };
-    ResultSet exists = Mariadb.queryDB("SELECT id FROM MOVIE WHERE name = ?", existsArgs);
-    try {
-      if (exists != null && exists.next()) {
+  public CompletionStage<Response> createMovie(CreateMovieRequest request) {
+    return DbExecutor.submit(() -> {
+      if (request == null || request.name == null || request.videoPath == null || request.thumbnailPath == null) {
+        return Response.status(Response.Status.BAD_REQUEST).build();
+      }
+      String name = request.name.trim();
+      if (name.isEmpty()) {
+        return Response.status(Response.Status.BAD_REQUEST).build();
+      }
+      // Normalize local/device paths into service-friendly defaults
+      String normalizedVideoPath = request.videoPath;
+      if (normalizedVideoPath.startsWith("./") || normalizedVideoPath.startsWith("/data")
+          || normalizedVideoPath.startsWith("/storage") || normalizedVideoPath.startsWith("/sdcard")) {
+        normalizedVideoPath = String.format("videos/%s/", name);
+      }
+      String normalizedThumbnailPath = request.thumbnailPath;
+      if (normalizedThumbnailPath.startsWith("./") || normalizedThumbnailPath.startsWith("/data")
+          || normalizedThumbnailPath.startsWith("/storage") || normalizedThumbnailPath.startsWith("/sdcard")) {
+        normalizedThumbnailPath = String.format("thumbnails/%s.png", name);
+      }
+      if(request.thumbnailPath.isEmpty()){
+          normalizedThumbnailPath = GCSHelper.getPublicUrl("thumbnails/"+name.replace(" ","_")+"/default.png");
+      }
+
+      // the unique index on MOVIE.name rejects duplicates, no existence check needed
+      Movie movie;
+      try {
+        movie = movies.create(name, request.description != null ? request.description : "", request.genre,
+            request.year, normalizedVideoPath, normalizedThumbnailPath);
+      } catch (SQLException se) {
+        se.printStackTrace();
+        System.out.println("Create movie failed (DB insert) for " + name);
+        return Response.serverError().build();
+      }
+      if (movie == null) {
         System.out.println("Create movie refused: movie already exists -> " + name);
         return Response.status(Response.Status.CONFLICT).entity("Movie already exists").build();
       }
-    } catch (SQLException ignored) {
-      System.out.println("Create movie failed checking existing for " + name);
-    }
-
-    // Normalize local/device paths into service-friendly defaults
-    String normalizedVideoPath = request.videoPath;
-    if (normalizedVideoPath.startsWith("./") || normalizedVideoPath.startsWith("/data")
-        || normalizedVideoPath.startsWith("/storage") || normalizedVideoPath.startsWith("/sdcard")) {
-      normalizedVideoPath = String.format("videos/%s/", name);
-    }
-    String normalizedThumbnailPath = request.thumbnailPath;
-    if (normalizedThumbnailPath.startsWith("./") || normalizedThumbnailPath.startsWith("/data")
-        || normalizedThumbnailPath.startsWith("/storage") || normalizedThumbnailPath.startsWith("/sdcard")) {
-      normalizedThumbnailPath = String.format("thumbnails/%s.png", name);
-    }
-    if(request.thumbnailPath.isEmpty()){
-        normalizedThumbnailPath = GCSHelper.getPublicUrl("thumbnails/"+name.replace(" ","_")+"/default.png");
-    }
-
-    String[] args = {
-        name,
-        request.description != null ? request.description : "",
-        request.genre != null ? Integer.toString(request.genre) : null,
-        request.year != null ? Integer.toString(request.year) : null,
-        normalizedVideoPath,
-        normalizedThumbnailPath
-    };
-    
-      
-    Integer newId = Mariadb.insertAndReturnId(
-        "INSERT INTO MOVIE(name,description,genre,year,videoPath,thumbnailPath) VALUES(?,?,?,?,?,?)", args);
-    if (newId == null) {
-      System.out.println("Create movie failed (DB insert) for " + name);
-      return Response.serverError().build();
-    }
 
-    System.out.println("Created movie id=" + newId + " name=" + name);
-    Movie movie = new Movie(newId, name, request.description != null ? request.description : "",
-        request.genre != null ? request.genre : 0,
-        request.year != null ? request.year : 0,
-        normalizedVideoPath, normalizedThumbnailPath);
-    return Response.ok(movie).build();
+      System.out.println("Created movie id=" + movie.getId() + " name=" + name);
+      return Response.ok(movie).build();
+    });
   }
 
   @DELETE
   @Path("/{id}")
-  public Response deleteMovie(@PathParam("id") int id) {
-    String[] args = { Integer.toString(id) };
-    ResultSet movie = Mariadb.queryDB("SELECT id, name, videoPath, thumbnailPath FROM MOVIE WHERE id = ?", args);
-    try {
-      if (movie != null && movie.next()) {
-        String videoPath = movie.getString("videoPath");
-        String thumbnailPath = movie.getString("thumbnailPath");
+  public CompletionStage<Response> deleteMovie(@PathParam("id") int id) {
+    // only the row goes through the DB executor; the bucket is cleaned up back on Jetty's pool
+    return DbExecutor.submit(() -> {
+      try {
+        Movie movie = movies.findById(id);
+        if (movie == null) {
+          System.out.println("Delete movie: id not found (id=" + id + ")");
+          return null;
+        }
+        movies.delete(id);
+        StreamResolutionCache.invalidate(movie.getName());
+        System.out.println("Deleted movie id=" + id);
+        return movie;
+      } catch (SQLException ignored) {
+        System.out.println("Delete movie failed for id=" + id);
+        return null;
+      }
+    }).thenApply(movie -> {
+      if (movie != null) {
+        String videoPath = movie.getVideoPath();
         // Attempt to delete associated objects in the bucket
-        GCSHelper.deleteObject(GCSHelper.getPublicUrl("thumbnails/"+movie.getString("name").replace(" ", "_")+"/default.png"));
-        GCSHelper.deleteObject(thumbnailPath);
+        GCSHelper.deleteObject(GCSHelper.getPublicUrl("thumbnails/"+movie.getName().replace(" ", "_")+"/default.png"));
+        GCSHelper.deleteObject(movie.getThumbnailPath());
         GCSHelper.deleteObject(videoPath+"360.mp4");
         GCSHelper.deleteObject(videoPath+"1080.mp4");
-        Mariadb.execute("DELETE FROM MOVIE WHERE id = ?", args);
-        System.out.println("Deleted movie id=" + id);
-      } else {
-        System.out.println("Delete movie: id not found (id=" + id + ")");
       }
-    } catch (SQLException ignored) {
-      System.out.println("Delete movie failed for id=" + id);
-    }
-    return Response.noContent().build();
+      return Response.noContent().build();
+    });
   }
 
   @PUT
   @Path("/{id}")
   @Consumes(MediaType.APPLICATION_JSON)
   @Produces(MediaType.APPLICATION_JSON)
-  public Response updateMovie(@PathParam("id") int id, UpdateMovieRequest request) {
-    String[] args = { Integer.toString(id) };
-    ResultSet existing = Mariadb.queryDB("SELECT * FROM MOVIE WHERE id = ?", args);
-    try {
-      if (existing == null || !existing.next()) {
-        return Response.status(Response.Status.NOT_FOUND).entity("Movie not found").build();
-      }
-      String currentName = existing.getString("name");
-      String currentDescription = existing.getString("description");
-      Integer currentGenre = existing.getInt("genre");
-      if (existing.wasNull()) currentGenre = null;
-      Integer currentYear = existing.getInt("year");
-      if (existing.wasNull()) currentYear = 0;
-      String currentVideoPath = existing.getString("videoPath");
-      String currentThumbnailPath = existing.getString("thumbnailPath");
+  public CompletionStage<Response> updateMovie(@PathParam("id") int id, UpdateMovieRequest request) {
+    return DbExecutor.submit(() -> {
+      try {
+        Movie existing = movies.findById(id);
+        if (existing == null) {
+          return Response.status(Response.Status.NOT_FOUND).entity("Movie not found").build();
+        }
+        String currentName = existing.getName();
+        String currentDescription = existing.getDescription();
+        Integer currentGenre = existing.getGenre();
+        Integer currentYear = existing.getYear();
+        String currentVideoPath = existing.getVideoPath();
+        String currentThumbnailPath = existing.getThumbnailPath();
 
-      if (request == null) {
-        return Response.status(Response.Status.BAD_REQUEST).entity("Missing body").build();
-      }
+        if (request == null) {
+          return Response.status(Response.Status.BAD_REQUEST).entity("Missing body").build();
+        }
 
-      String newName = request.name != null ? request.name.trim() : currentName;
-      String newDescription = request.description != null ? request.description.trim() : currentDescription;
-      Integer newGenre = request.genre != null ? request.genre : currentGenre;
-      String newThumbnailPath = request.thumbnailPath != null ? request.thumbnailPath.trim() : currentThumbnailPath;
+        String newName = request.name != null ? request.name.trim() : currentName;
+        String newDescription = request.description != null ? request.description.trim() : currentDescription;
+        Integer newGenre = request.genre != null ? request.genre : currentGenre;
+        String newThumbnailPath = request.thumbnailPath != null ? request.thumbnailPath.trim() : currentThumbnailPath;
 
-      if (newName == null || newName.isEmpty()) {
-        return Response.status(Response.Status.BAD_REQUEST).entity("Name cannot be empty").build();
-      }
-      if (newThumbnailPath == null || newThumbnailPath.isEmpty()) {
-        return Response.status(Response.Status.BAD_REQUEST).entity("Thumbnail path cannot be empty").build();
-      }
+        if (newName == null || newName.isEmpty()) {
+          return Response.status(Response.Status.BAD_REQUEST).entity("Name cannot be empty").build();
+        }
+        if (newThumbnailPath == null || newThumbnailPath.isEmpty()) {
+          return Response.status(Response.Status.BAD_REQUEST).entity("Thumbnail path cannot be empty").build();
+        }
 
-      // Normalize paths similar to createMovie
-      if (newThumbnailPath.startsWith("./") || newThumbnailPath.startsWith("/data")
-          || newThumbnailPath.startsWith("/storage") || newThumbnailPath.startsWith("/sdcard")) {
-        newThumbnailPath = String.format("thumbnails/%s", newName);
-      }
+        // Normalize paths similar to createMovie
+        if (newThumbnailPath.startsWith("./") || newThumbnailPath.startsWith("/data")
+            || newThumbnailPath.startsWith("/storage") || newThumbnailPath.startsWith("/sdcard")) {
+          newThumbnailPath = String.format("thumbnails/%s", newName);
+        }
 
-      String[] updateArgs = {
-          newName,
-          newDescription != null ? newDescription : "",
-          newGenre != null ? Integer.toString(newGenre) : null,
-          newThumbnailPath,
-          Integer.toString(id)
-      };
-      Mariadb.execute("UPDATE MOVIE SET name = ?, description = ?, genre = ?, thumbnailPath = ? WHERE id = ?",
-          updateArgs);
-      Movie movie = new Movie(id, newName, newDescription != null ? newDescription : "",
-          newGenre != null ? newGenre : 0,
-          currentYear != null ? currentYear : 0, currentVideoPath, newThumbnailPath);
-      System.out.println("Updated movie id=" + id + " name=" + newName);
-      return Response.ok(movie).build();
-    } catch (SQLException e) {
-      System.out.println("Update movie failed for id=" + id);
-      return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Server error").build();
-    }
+        movies.update(id, newName, newDescription != null ? newDescription : "", newGenre, newThumbnailPath);
+        // a renamed title must stop resolving under its old name
+        StreamResolutionCache.invalidate(currentName);
+        StreamResolutionCache.invalidate(newName);
+        Movie movie = new Movie(id, newName, newDescription != null ? newDescription : "",
+            newGenre != null ? newGenre : 0,
+            currentYear != null ? currentYear : 0, currentVideoPath, newThumbnailPath);
+        System.out.println("Updated movie id=" + id + " name=" + newName);
+        return Response.ok(movie).build();
+      } catch (SQLException e) {
+        System.out.println("Update movie failed for id=" + id);
+        return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Server error").build();
+      }
+    });
   }
 
   @GET
   @Path("/test")
   @Produces(MediaType.APPLICATION_OCTET_STREAM)
-  public Response video() {
+  public Response video(@HeaderParam("Range") String range, @HeaderParam("If-Range") String ifRange,
+      @Context org.eclipse.jetty.server.Response connection) {
     File file = new File("./res/videos/popeye/1080.mp4");
-    return Response.ok(file, MediaType.APPLICATION_OCTET_STREAM)
-        .build();
+    return buildStream(file, range, ifRange, MediaType.APPLICATION_OCTET_STREAM, ByteRanges.maxWindow(),
+        LocalStorage.connection(connection));
   }
 
   @GET
   @Path("/thumbnails/{videoName}")
   @Produces("image/png")
-  public Response getThumbnail(@PathParam("videoName") String videoName) {
-    String[] arg = { videoName };
-    ResultSet result = Mariadb.queryDB("SELECT thumbnailPath FROM MOVIE WHERE name = ?", arg);
-
-    try {
-      if (result.next() == false)
-        return Response.status(Response.Status.NOT_FOUND).entity("Thumbnail not found").type(MediaType.TEXT_PLAIN)
-            .build();
-      String thumbnailPath;
-      thumbnailPath = result.getString("thumbnailPath");
-      return Response.seeOther(new java.net.URI(thumbnailPath)).build();
-      // File file = new File(String.format("%s/%s.png", thumbnailPath, movieName));
-      // return Response.ok(file, MediaType.APPLICATION_OCTET_STREAM).build();
-    } catch (SQLException | URISyntaxException e) {
-      e.printStackTrace();
-      return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Server error").build();
-    }
+  public CompletionStage<Response> getThumbnail(@PathParam("videoName") String videoName) {
+    return DbExecutor.submit(() -> {
+      try {
+        String thumbnailPath = movies.findThumbnailPathByName(videoName);
+        if (thumbnailPath == null)
+          return Response.status(Response.Status.NOT_FOUND).entity("Thumbnail not found").type(MediaType.TEXT_PLAIN)
+              .build();
+        return Response.seeOther(new java.net.URI(thumbnailPath)).build();
+        // File file = new File(String.format("%s/%s.png", thumbnailPath, movieName));
+        // return Response.ok(file, MediaType.APPLICATION_OCTET_STREAM).build();
+      } catch (SQLException | URISyntaxException e) {
+        e.printStackTrace();
+        return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Server error").build();
+      }
+    });
   }
 
   @GET
   @Path("/{videoName}/{resolution}")
   @Produces("video/mp4")
-  public Response streamVideo(@PathParam("videoName") String videoName, @PathParam("resolution") int resolution,
-      @HeaderParam("Range") String range) {
-    if (resolution != 1080 && resolution != 360)
-      resolution = 1080;
-    try {
-      // Step 1: Get video path from DB
-      String[] arg = { videoName };
-      ResultSet result = Mariadb.queryDB("SELECT videoPath FROM MOVIE WHERE name = ?", arg);
-      if (!result.next()) {
+  public CompletionStage<Response> streamVideo(@PathParam("videoName") String videoName,
+      @PathParam("resolution") int resolution, @HeaderParam("Range") String range,
+      @HeaderParam("If-Range") String ifRange, @Context org.eclipse.jetty.server.Response connection) {
+    int height = resolution != 1080 && resolution != 360 ? 1080 : resolution;
+    if (LocalStorage.ENABLED) {
+      File file = LocalStorage.video(videoName, height);
+      if (file == null) {
+        return CompletableFuture.completedFuture(
+            Response.status(Response.Status.NOT_FOUND).entity("Video not found").build());
+      }
+      return CompletableFuture.completedFuture(buildStream(file, range, ifRange, "video/mp4",
+          ByteRanges.maxWindow(height), LocalStorage.connection(connection)));
+    }
+    // seeks within a playback skip both the database and the bucket metadata call
+    GCSHelper.GcsObject cached = StreamResolutionCache.get(videoName, height);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(stream(cached, range, ifRange, height));
+    }
+    // only the lookup runs on a DB thread; the stream is set up back on Jetty's pool
+    return DbExecutor.submit(() -> movies.findVideoPathByName(videoName)).thenApply(videoPath -> {
+      if (videoPath == null) {
         return Response.status(Response.Status.NOT_FOUND).entity("Video not found").build();
       }
-      String videoPath = result.getString("videoPath");
-      videoPath = String.format("%s%d.mp4", videoPath, resolution);
-      return GCSHelper.streamFromGcs(videoPath, range);
+      GCSHelper.GcsObject object;
+      try {
+        object = GCSHelper.resolve(String.format("%s%d.mp4", videoPath, height));
+      } catch (Exception e) {
+        e.printStackTrace();
+        return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Server error").build();
+      }
+      if (object == null) {
+        return Response.status(Response.Status.NOT_FOUND).entity("Video not found in GCS").build();
+      }
+      StreamResolutionCache.put(videoName, height, object);
+      return stream(object, range, ifRange, height);
+    });
+  }
 
+  private static Response stream(GCSHelper.GcsObject object, String range, String ifRange, int resolution) {
+    try {
+      return GCSHelper.streamFromGcs(object, range, ifRange, ByteRanges.maxWindow(resolution));
     } catch (Exception e) {
       e.printStackTrace();
       return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Server error").build();
@@ -275,58 +291,28 @@ public class Movies implements endpoint {
   }
 
   static public Response buildStream(final File videoFile, final String range) {
+    return buildStream(videoFile, range, null);
+  }
 
-    long length = videoFile.length();
-    long start = 0;
-    long end = length - 1;
-    long chunkSize = end - start + 1;
-    try {
-      if (range == null) {
-
-        InputStream inputStream = new FileInputStream(videoFile);
-        StreamingOutput stream = output -> {
-          byte[] buffer = new byte[BUFFER_SIZE];
-          long bytesRead = 0;
-          while (bytesRead < chunkSize) {
-            int read = inputStream.read(buffer);
-            if (read == -1)
-              break;
-            output.write(buffer, 0, read);
-            bytesRead += read;
-          }
-          output.flush();
-          inputStream.close();
-
-        };
-
-        return Response.ok(stream, "video/mp4")
-            .status(Response.Status.OK)
-            .header("Accept-Ranges", "bytes")
-            .header(HttpHeaders.CONTENT_LENGTH, videoFile.length())
-            .build();
-      }
-      String[] ranges = range.split("=")[1].split("-");
-      int from = Integer.parseInt(ranges[0]);
-      long to = chunkSize + from;
-      if (to >= videoFile.length()) {
-        to = videoFile.length() - 1;
-      }
-      final String responseRange = String.format("bytes %d-%d/%d", from, to, videoFile.length());
+  static public Response buildStream(final File videoFile, final String range, final String ifRange) {
+    return buildStream(videoFile, range, ifRange, "video/mp4", ByteRanges.maxWindow(), null);
+  }
 
-      final RandomAccessFile raf = new RandomAccessFile(videoFile, "r");
-      raf.seek(from);
-      final long len = to - from + 1;
-      final MediaStreamer mediaStreamer = new MediaStreamer((int) len, raf);
-      return Response.ok(mediaStreamer, "video/mp4")
-          .status(Response.Status.PARTIAL_CONTENT)
-          .header("Accept-Ranges", "bytes")
-          .header("Content-Range", responseRange)
-          .header(HttpHeaders.CONTENT_LENGTH, mediaStreamer.getLength())
-          .header(HttpHeaders.LAST_MODIFIED, new Date(videoFile.lastModified()))
-          .build();
-    } catch (IOException e) {
-      // e.printStackTrace();
-    }
-    return null;
+  /**
+   * Streams a local file; with the client {@code connection} the file is
+   * written to it without passing through the heap.
+   */
+  static public Response buildStream(final File videoFile, final String range, final String ifRange,
+      final String contentType, final long maxWindow, final WritableByteChannel connection) {
+    long length = videoFile.length();
+    Date lastModified = new Date(videoFile.lastModified());
+    String etag = String.format("\"%x-%x\"", length, videoFile.lastModified());
+    ByteRanges.Body body = (start, count, output) -> {
+      RandomAccessFile raf = new RandomAccessFile(videoFile, "r");
+      raf.seek(start);
+      WritableByteChannel direct = connection != null ? StreamStats.direct(output, connection) : null;
+      new MediaStreamer(count, raf, direct).write(output);
+    };
+    return ByteRanges.respond(range, ifRange, etag, lastModified, length, contentType, maxWindow, body);
   }
 }
@@ -1,12 +1,12 @@
 package com.mkyong.endpoints;
 
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletionStage;
 
-import com.mariadb.Mariadb;
 import com.mariadb.Profile;
+import com.mariadb.ProfileRepository;
+import com.mkyong.DbExecutor;
 
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.GET;
@@ -38,141 +38,110 @@ public class Profiles implements endpoint {
     public Boolean kids;
   }
 
+  private static final ProfileRepository profiles = new ProfileRepository();
+
   @GET
   @Path("/user/{userId}")
   @Produces(MediaType.APPLICATION_JSON)
-  public Response getProfiles(@PathParam("userId") int userId) {
-    List<Profile> profiles = new ArrayList<>();
-    String[] args = { Integer.toString(userId) };
-    ResultSet result = Mariadb.queryDB("SELECT * FROM PROFILE WHERE userId = ?", args);
-    try {
-      if (result != null) {
-        while (result.next()) {
-          profiles.add(new Profile(result.getInt("id"), result.getInt("userId"),
-              result.getString("name"), result.getString("avatarColor"), result.getBoolean("kids")));
-        }
+  public CompletionStage<Response> getProfiles(@PathParam("userId") int userId) {
+    return DbExecutor.submit(() -> {
+      try {
+        List<Profile> result = profiles.findByUser(userId);
+        return Response.ok(result).build();
+      } catch (SQLException se) {
+        se.printStackTrace();
+        return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Unable to fetch profiles").build();
       }
-      return Response.ok(profiles).build();
-    } catch (SQLException se) {
-      se.printStackTrace();
-      return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Unable to fetch profiles").build();
-    }
+    });
   }
 
   @POST
   @Consumes(MediaType.APPLICATION_JSON)
   @Produces(MediaType.APPLICATION_JSON)
-  public Response createProfile(ProfilePayload payload) {
-    if (payload == null) {
-      return Response.status(Response.Status.BAD_REQUEST).entity("Invalid payload").type(MediaType.TEXT_PLAIN).build();
-    }
-
-    String trimmedName = payload.name == null ? "" : payload.name.trim();
-    if (trimmedName.isEmpty()) {
-      return Response.status(Response.Status.BAD_REQUEST).entity("Profile name is required")
-          .type(MediaType.TEXT_PLAIN).build();
-    }
-
-    String color = (payload.avatarColor == null || payload.avatarColor.trim().isEmpty())
-        ? "#E50914"
-        : payload.avatarColor.trim();
+  public CompletionStage<Response> createProfile(ProfilePayload payload) {
+    return DbExecutor.submit(() -> {
+      if (payload == null) {
+        return Response.status(Response.Status.BAD_REQUEST).entity("Invalid payload").type(MediaType.TEXT_PLAIN).build();
+      }
 
-    String[] duplicateArgs = { Integer.toString(payload.userId), trimmedName };
-    ResultSet existing = Mariadb.queryDB("SELECT id FROM PROFILE WHERE userId = ? AND name = ?", duplicateArgs);
-    try {
-      if (existing != null && existing.next()) {
-        return Response.status(Response.Status.CONFLICT).entity("Profile already exists")
+      String trimmedName = payload.name == null ? "" : payload.name.trim();
+      if (trimmedName.isEmpty()) {
+        return Response.status(Response.Status.BAD_REQUEST).entity("Profile name is required")
             .type(MediaType.TEXT_PLAIN).build();
       }
-    } catch (SQLException se) {
-      se.printStackTrace();
-      return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Unable to validate profile uniqueness")
-          .type(MediaType.TEXT_PLAIN).build();
-    }
 
-    String[] insertArgs = { Integer.toString(payload.userId), trimmedName, color, payload.kids ? "1" : "0" };
-    Integer newProfileId = Mariadb.insertAndReturnId(
-        "INSERT INTO PROFILE(userId,name,avatarColor,kids) VALUES(?,?,?,?)",
-        insertArgs);
-
-    if (newProfileId == null) {
-      return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Unable to create profile")
-          .type(MediaType.TEXT_PLAIN).build();
-    }
+      String color = (payload.avatarColor == null || payload.avatarColor.trim().isEmpty())
+          ? "#E50914"
+          : payload.avatarColor.trim();
 
-    String[] fetchArgs = { Integer.toString(newProfileId) };
-    ResultSet created = Mariadb.queryDB("SELECT * FROM PROFILE WHERE id = ?", fetchArgs);
-    try {
-      if (created != null && created.next()) {
-        Profile profile = new Profile(created.getInt("id"), created.getInt("userId"),
-            created.getString("name"), created.getString("avatarColor"), created.getBoolean("kids"));
-        return Response.status(Response.Status.CREATED).entity(profile).build();
+      Profile profile;
+      try {
+        profile = profiles.create(payload.userId, trimmedName, color, payload.kids);
+      } catch (SQLException se) {
+        se.printStackTrace();
+        return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Unable to create profile")
+            .type(MediaType.TEXT_PLAIN).build();
       }
-    } catch (SQLException se) {
-      se.printStackTrace();
-    }
-
-    return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Profile created but not retrievable")
-        .type(MediaType.TEXT_PLAIN).build();
+      if (profile == null) {
+        return Response.status(Response.Status.CONFLICT).entity("Profile already exists")
+            .type(MediaType.TEXT_PLAIN).build();
+      }
+      return Response.status(Response.Status.CREATED).entity(profile).build();
+    });
   }
 
   @PUT
   @Path("/{id}")
   @Consumes(MediaType.APPLICATION_JSON)
   @Produces(MediaType.APPLICATION_JSON)
-  public Response updateProfile(@PathParam("id") int id, UpdateProfilePayload payload) {
-    if (payload == null) {
-      return Response.status(Response.Status.BAD_REQUEST).entity("Invalid payload").type(MediaType.TEXT_PLAIN).build();
-    }
-
-    String[] args = { Integer.toString(id) };
-    ResultSet existing = Mariadb.queryDB("SELECT * FROM PROFILE WHERE id = ?", args);
-    try {
-      if (existing == null || !existing.next()) {
-        return Response.status(Response.Status.NOT_FOUND).entity("Profile not found").type(MediaType.TEXT_PLAIN).build();
+  public CompletionStage<Response> updateProfile(@PathParam("id") int id, UpdateProfilePayload payload) {
+    return DbExecutor.submit(() -> {
+      if (payload == null) {
+        return Response.status(Response.Status.BAD_REQUEST).entity("Invalid payload").type(MediaType.TEXT_PLAIN).build();
       }
-      String currentName = existing.getString("name");
-      String currentColor = existing.getString("avatarColor");
-      boolean currentKids = existing.getBoolean("kids");
 
-      String trimmedName = payload.name == null ? currentName : payload.name.trim();
-      if (trimmedName.isEmpty()) {
-        return Response.status(Response.Status.BAD_REQUEST).entity("Profile name is required")
+      try {
+        Profile existing = profiles.findById(id);
+        if (existing == null) {
+          return Response.status(Response.Status.NOT_FOUND).entity("Profile not found").type(MediaType.TEXT_PLAIN).build();
+        }
+
+        String trimmedName = payload.name == null ? existing.getName() : payload.name.trim();
+        if (trimmedName.isEmpty()) {
+          return Response.status(Response.Status.BAD_REQUEST).entity("Profile name is required")
+              .type(MediaType.TEXT_PLAIN).build();
+        }
+        String color = (payload.avatarColor == null || payload.avatarColor.trim().isEmpty())
+            ? existing.getAvatarColor()
+            : payload.avatarColor.trim();
+        boolean kids = payload.kids == null ? existing.isKids() : payload.kids;
+
+        Profile profile =
+            new Profile(id, existing.getUserId(), trimmedName, color, kids);
+        profiles.update(profile);
+        return Response.ok(profile).build();
+      } catch (SQLException se) {
+        se.printStackTrace();
+        return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Unable to update profile")
             .type(MediaType.TEXT_PLAIN).build();
       }
-      String color = (payload.avatarColor == null || payload.avatarColor.trim().isEmpty())
-          ? currentColor
-          : payload.avatarColor.trim();
-      boolean kids = payload.kids == null ? currentKids : payload.kids;
-
-      String[] updateArgs = { trimmedName, color, kids ? "1" : "0", Integer.toString(id) };
-      Mariadb.execute("UPDATE PROFILE SET name = ?, avatarColor = ?, kids = ? WHERE id = ?", updateArgs);
-
-      Profile profile =
-          new Profile(id, existing.getInt("userId"), trimmedName, color, kids);
-      return Response.ok(profile).build();
-    } catch (SQLException se) {
-      se.printStackTrace();
-      return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Unable to update profile")
-          .type(MediaType.TEXT_PLAIN).build();
-    }
+    });
   }
 
   @DELETE
   @Path("/{id}")
-  public Response deleteProfile(@PathParam("id") int id) {
-    String[] args = { Integer.toString(id) };
-    ResultSet existing = Mariadb.queryDB("SELECT id FROM PROFILE WHERE id = ?", args);
-    try {
-      if (existing == null || !existing.next()) {
-        return Response.status(Response.Status.NOT_FOUND).entity("Profile not found").type(MediaType.TEXT_PLAIN).build();
+  public CompletionStage<Response> deleteProfile(@PathParam("id") int id) {
+    return DbExecutor.submit(() -> {
+      try {
+        if (!profiles.delete(id)) {
+          return Response.status(Response.Status.NOT_FOUND).entity("Profile not found").type(MediaType.TEXT_PLAIN).build();
+        }
+        return Response.noContent().build();
+      } catch (SQLException se) {
+        se.printStackTrace();
+        return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Unable to delete profile")
+            .type(MediaType.TEXT_PLAIN).build();
       }
-      Mariadb.execute("DELETE FROM PROFILE WHERE id = ?", args);
-      return Response.noContent().build();
-    } catch (SQLException se) {
-      se.printStackTrace();
-      return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Unable to delete profile")
-          .type(MediaType.TEXT_PLAIN).build();
-    }
+    });
   }
 }
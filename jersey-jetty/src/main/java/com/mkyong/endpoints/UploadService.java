@@ -2,6 +2,8 @@ package com.mkyong.endpoints;
 
 import com.mariadb.Mariadb;
 import com.mkyong.GCSHelper;
+import com.mkyong.HeadCache;
+import com.mkyong.StreamResolutionCache;
 
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.POST;
@@ -91,9 +93,8 @@ public class UploadService implements endpoint {
       }
     String videoPath = GCSHelper.getPublicUrl(String.format("videos/%d", nextId));
     String thumbnailPath = GCSHelper.getPublicUrl(String.format("thumbnails/%d.png", nextId));
-    String[] args = { movieName, videoPath, thumbnailPath, "aaa", "0", "0" };
     if (Mariadb.insert("INSERT INTO MOVIE(name,videoPath,thumbnailPath,description,year,genre) VALUES(?,?,?,?,?,?)",
-        args) == false) {
+        movieName, videoPath, thumbnailPath, "aaa", 0, 0) == false) {
       System.err.println("Unable to insert video to db");
       return;
     }
@@ -149,8 +150,13 @@ public class UploadService implements endpoint {
       
       
       GCSHelper.upload("thumbnails/" + movieName + "/default.png", thumbFile, "image/png");
-      GCSHelper.upload("videos/" + movieName + "/360.mp4", lowResFile, "video/mp4");
-      GCSHelper.upload("videos/" + movieName + "/1080.mp4", highResFile, "video/mp4");
+      GCSHelper.GcsObject lowRes = GCSHelper.upload("videos/" + movieName + "/360.mp4", lowResFile, "video/mp4");
+      GCSHelper.GcsObject highRes = GCSHelper.upload("videos/" + movieName + "/1080.mp4", highResFile, "video/mp4");
+      // the first viewers start from memory instead of fetching the heads back
+      HeadCache.load(lowRes, lowResFile);
+      HeadCache.load(highRes, highResFile);
+      // a re-upload replaces the objects, so cached generations are stale
+      StreamResolutionCache.invalidate(movieName);
 
       thumbFile.delete();
       lowResFile.delete();
@@ -1,6 +1,7 @@
 package com.mkyong.endpoints;
 
 import com.mariadb.*;
+import com.mkyong.DbExecutor;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.GET;
@@ -8,12 +9,11 @@ import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.MediaType;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.CompletionStage;
 
 @Path("/user")
 public class Users implements endpoint {
@@ -29,150 +29,111 @@ public class Users implements endpoint {
     return "Invalid url";
   }
 
+  private static final String DEFAULT_PROFILE_COLOR = "#E50914";
+  private static final UserRepository users = new UserRepository();
+
   @Path("/{name}/{password}")
   @GET
   @Produces(MediaType.APPLICATION_JSON)
-  public User newUser(@PathParam("name") String name, @PathParam("password") String password) {
-
-    String sanitizedName = name.trim();
-    String[] arg = { sanitizedName };
-
-    ResultSet result = Mariadb.queryDB("SELECT * FROM USER WHERE name = ?", arg);
-    try {
-
-      if (result != null && result.next() == false) {
-
-        String[] args = { sanitizedName, password };
-        Integer newUserId = Mariadb.insertAndReturnId("INSERT INTO USER(name,password) VALUES(?,?)", args);
-        if (newUserId == null) {
-          return null;
-        }
-
-        String[] profileArgs = { Integer.toString(newUserId), sanitizedName, "#E50914", "0" };
-        Mariadb.insert("INSERT INTO PROFILE(userId,name,avatarColor,kids) VALUES(?,?,?,?)", profileArgs);
-
-        String[] fetchArgs = { Integer.toString(newUserId) };
-        ResultSet created = Mariadb.queryDB("SELECT * FROM USER WHERE id = ?", fetchArgs);
-        if (created != null && created.next()) {
-          return new User(created.getInt("id"), created.getString("name"), created.getString("password"));
-        }
-        return new User(newUserId, sanitizedName, password);
+  public CompletionStage<User> newUser(@PathParam("name") String name, @PathParam("password") String password) {
+    return DbExecutor.submit(() -> {
+      String sanitizedName = name.trim();
+      try {
+        // null when the name is taken
+        return users.createWithDefaultProfile(sanitizedName, password, DEFAULT_PROFILE_COLOR);
+      } catch (SQLException se) {
+       // se.printStackTrace();
+      } finally {
       }
-    } catch (SQLException se) {
-     // se.printStackTrace();
-    } finally {
-    }
-
-    return null;
 
+      return null;
+    });
   }
 
   @Path("/connect/{name}/{password}")
   @GET
   @Produces(MediaType.APPLICATION_JSON)
-  public User connectUser(@PathParam("name") String name, @PathParam("password") String password) {
-
-    String sanitizedName = name.trim();
-    String[] args = { sanitizedName, password };
-    ResultSet result = Mariadb.queryDB("SELECT * FROM USER WHERE name = ? AND password = ?", args);
-    try {
-
-      if (result != null && result.next()) {
-        return new User(result.getInt("id"), result.getString("name"), result.getString("password"));
+  public CompletionStage<User> connectUser(@PathParam("name") String name, @PathParam("password") String password) {
+    return DbExecutor.submit(() -> {
+      String sanitizedName = name.trim();
+      try {
+        return users.findByCredentials(sanitizedName, password);
+      } catch (SQLException se) {
+        //se.printStackTrace();
+      } finally {
       }
-    } catch (SQLException se) {
-      //se.printStackTrace();
-    } finally {
-    }
 
-    return null;
+      return null;
+    });
   }
 
   @Path("/all")
   @GET
   @Produces(MediaType.APPLICATION_JSON)
-  public List<User> helloList() {
-
-    List<User> list = new ArrayList<>();
-
-    ResultSet result = Mariadb.queryDB("SELECT * FROM USER");
-    try {
-
-      while (result.next()) {
-        list.add(new User(result.getInt("id"), result.getString("name"), result.getString("password")));
+  public CompletionStage<Response> helloList(@QueryParam("limit") Integer limit, @QueryParam("after") Integer after,
+      @QueryParam("stream") boolean stream) {
+    return DbExecutor.submit(() -> {
+      try {
+        if (stream) {
+          return JsonPages.stream(users::findPage, User::getId, after);
+        }
+        if (limit != null) {
+          return JsonPages.page(users::findPage, User::getId, after, limit);
+        }
+        return Response.ok(users.findAll()).build();
+      } catch (SQLException se) {
+        return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
       }
-    } catch (SQLException se) {
-      return null;
-    }
-    return list;
-
+    });
   }
 
   @POST
   @Consumes(MediaType.APPLICATION_JSON)
   @Produces(MediaType.APPLICATION_JSON)
-  public Response createUser(CreateRequest request) {
-    if (request == null || request.name == null || request.password == null) {
-      return Response.status(Response.Status.BAD_REQUEST).build();
-    }
-    String sanitizedName = request.name.trim();
-    if (sanitizedName.isEmpty()) {
-      return Response.status(Response.Status.BAD_REQUEST).build();
-    }
+  public CompletionStage<Response> createUser(CreateRequest request) {
+    return DbExecutor.submit(() -> {
+      if (request == null || request.name == null || request.password == null) {
+        return Response.status(Response.Status.BAD_REQUEST).build();
+      }
+      String sanitizedName = request.name.trim();
+      if (sanitizedName.isEmpty()) {
+        return Response.status(Response.Status.BAD_REQUEST).build();
+      }
 
-    String[] existsArgs = { sanitizedName };
-    ResultSet exists = Mariadb.queryDB("SELECT id FROM USER WHERE name = ?", existsArgs);
-    try {
-      if (exists != null && exists.next()) {
+      // user and default profile are inserted in one transaction
+      User user;
+      try {
+        user = users.createWithDefaultProfile(sanitizedName, request.password, DEFAULT_PROFILE_COLOR);
+      } catch (SQLException se) {
+        se.printStackTrace();
+        System.out.println("Create user failed (DB insert) for name=" + sanitizedName);
+        return Response.serverError().build();
+      }
+      if (user == null) {
         System.out.println("Create user refused: user already exists -> " + sanitizedName);
         return Response.status(Response.Status.CONFLICT).entity("User already exists").build();
       }
-    } catch (SQLException ignored) {
-      System.out.println("Create user failed checking existing for " + sanitizedName);
-    }
-
-    String[] args = { sanitizedName, request.password };
-    Integer newUserId = Mariadb.insertAndReturnId("INSERT INTO USER(name,password) VALUES(?,?)", args);
-    if (newUserId == null) {
-      System.out.println("Create user failed (DB insert) for name=" + sanitizedName);
-      return Response.serverError().build();
-    }
-
-    // create a default profile
-    String[] profileArgs = { Integer.toString(newUserId), sanitizedName, "#E50914", "0" };
-    Mariadb.insert("INSERT INTO PROFILE(userId,name,avatarColor,kids) VALUES(?,?,?,?)", profileArgs);
-
-    String[] fetchArgs = { Integer.toString(newUserId) };
-    ResultSet created = Mariadb.queryDB("SELECT * FROM USER WHERE id = ?", fetchArgs);
-    try {
-      if (created != null && created.next()) {
-        User user = new User(created.getInt("id"), created.getString("name"), created.getString("password"));
-        System.out.println("Created streaming user id=" + user.getId() + " name=" + user.getName());
-        return Response.ok(user).build();
-      }
-    } catch (SQLException ignored) {
-    }
-    System.out.println("Create user failed (post-fetch) for name=" + sanitizedName);
-    return Response.serverError().build();
+      System.out.println("Created streaming user id=" + user.getId() + " name=" + user.getName());
+      return Response.ok(user).build();
+    });
   }
 
   @DELETE
   @Path("/{id}")
-  public Response deleteUser(@PathParam("id") int id) {
-    String[] args = { Integer.toString(id) };
-    ResultSet user = Mariadb.queryDB("SELECT id FROM USER WHERE id = ?", args);
-    try {
-      if (user != null && user.next()) {
-        Mariadb.execute("DELETE FROM USER WHERE id = ?", args);
-        System.out.println("Deleted streaming user id=" + id);
-      } else {
-        System.out.println("Delete user: id not found (id=" + id + ")");
+  public CompletionStage<Response> deleteUser(@PathParam("id") int id) {
+    return DbExecutor.submit(() -> {
+      try {
+        if (users.delete(id)) {
+          System.out.println("Deleted streaming user id=" + id);
+        } else {
+          System.out.println("Delete user: id not found (id=" + id + ")");
+        }
+      } catch (SQLException ignored) {
+        System.out.println("Delete user failed for id=" + id);
       }
-    } catch (SQLException ignored) {
-      System.out.println("Delete user failed for id=" + id);
-    }
-    // idempotent delete
-    return Response.noContent().build();
+      // idempotent delete
+      return Response.noContent().build();
+    });
   }
 
 }
@@ -0,0 +1,77 @@
+package com.cassandra;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import com.mariadb.WatchProgress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/** How unacknowledged writes are merged into what the replicas return. */
+class CassandraProgressStoreMergeTest {
+
+  private static WatchProgress entry(int profileId, int movieId, long positionMs) {
+    return new WatchProgress(profileId, movieId, positionMs, null);
+  }
+
+  private static String describe(List<WatchProgress> entries) {
+    List<String> parts = new ArrayList<>();
+    for (WatchProgress entry : entries) {
+      parts.add(entry.movieId + "@" + entry.positionMs);
+    }
+    return String.join(",", parts);
+  }
+
+  private static List<WatchProgress> stored() {
+    return new ArrayList<>(Arrays.asList(entry(1, 10, 100), entry(1, 20, 200), entry(1, 30, 300)));
+  }
+
+  @Test
+  void nothingPendingReturnsTheStoredList() {
+    List<WatchProgress> stored = stored();
+    assertSame(stored, CassandraProgressStore.merge(stored, Collections.emptyList(), 1, 0, 10));
+  }
+
+  @Test
+  void pendingWritesOfOtherProfilesAreIgnored() {
+    List<WatchProgress> stored = stored();
+    List<WatchProgress> pending = Arrays.asList(entry(2, 10, 999), entry(2, 15, 999));
+    assertSame(stored, CassandraProgressStore.merge(stored, pending, 1, 0, 10));
+  }
+
+  @Test
+  void pendingWriteReplacesTheStoredEntry() {
+    List<WatchProgress> pending = Arrays.asList(entry(1, 20, 250));
+    assertEquals("10@100,20@250,30@300", describe(CassandraProgressStore.merge(stored(), pending, 1, 0, 10)));
+  }
+
+  @Test
+  void pendingWritesAreAddedInMovieOrder() {
+    List<WatchProgress> pending = Arrays.asList(entry(1, 35, 350), entry(1, 5, 50), entry(1, 25, 250));
+    assertEquals("5@50,10@100,20@200,25@250,30@300,35@350",
+        describe(CassandraProgressStore.merge(stored(), pending, 1, 0, 10)));
+  }
+
+  @Test
+  void pendingWritesAtOrBeforeTheCursorAreIgnored() {
+    List<WatchProgress> stored = Arrays.asList(entry(1, 20, 200), entry(1, 30, 300));
+    List<WatchProgress> pending = Arrays.asList(entry(1, 10, 111), entry(1, 15, 151), entry(1, 16, 161));
+    assertEquals("16@161,20@200,30@300", describe(CassandraProgressStore.merge(stored, pending, 1, 15, 10)));
+  }
+
+  @Test
+  void mergedPageIsCutToTheLimit() {
+    List<WatchProgress> pending = Arrays.asList(entry(1, 5, 50), entry(1, 40, 400));
+    assertEquals("5@50,10@100,20@200", describe(CassandraProgressStore.merge(stored(), pending, 1, 0, 3)));
+  }
+
+  @Test
+  void pendingWritesFillAnEmptyPage() {
+    List<WatchProgress> pending = Arrays.asList(entry(1, Integer.MAX_VALUE, 7), entry(1, 3, 3));
+    assertEquals("3@3," + Integer.MAX_VALUE + "@7",
+        describe(CassandraProgressStore.merge(Collections.emptyList(), pending, 1, 0, 10)));
+  }
+}
@@ -0,0 +1,120 @@
+package com.cassandra;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.Session;
+import com.mariadb.ProgressStore;
+import com.mariadb.ProgressStoreContract;
+import com.mariadb.WatchProgress;
+import java.sql.SQLException;
+import java.util.List;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The progress store contract and the in-flight write handling against a local
+ * single-node Cassandra. Skipped unless {@code -Dcassandra.contactPoints} is
+ * given, e.g. {@code mvn test -Dcassandra.contactPoints=127.0.0.1}.
+ */
+class CassandraProgressStoreTest extends ProgressStoreContract {
+
+  private static final long DRAIN_TIMEOUT_MS = 10000;
+
+  private static CassandraProgressStore shared;
+  private static Cluster cluster;
+  private static Session session;
+
+  @Override
+  protected ProgressStore newStore() {
+    assumeTrue(System.getProperty("cassandra.contactPoints") != null,
+        "set -Dcassandra.contactPoints to run against a Cassandra node");
+    if (shared == null) {
+      // creates the keyspace and table
+      shared = new CassandraProgressStore();
+      cluster = Cluster.builder()
+          .addContactPoints(CassandraProgressStore.CONTACT_POINTS.split(","))
+          .withPort(CassandraProgressStore.PORT)
+          .build();
+      session = cluster.connect(CassandraProgressStore.KEYSPACE);
+    }
+    drain(shared);
+    session.execute("TRUNCATE watch_progress");
+    return shared;
+  }
+
+  @AfterAll
+  static void close() {
+    if (shared != null) {
+      shared.close();
+      session.close();
+      cluster.close();
+    }
+  }
+
+  private static void drain(CassandraProgressStore store) {
+    long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+    while (store.inFlightWrites() > 0) {
+      assertTrue(System.currentTimeMillis() < deadline, "writes still in flight");
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  @Test
+  void readsSeeWritesStillInFlight() throws SQLException {
+    for (int movieId = 1; movieId <= 200; movieId++) {
+      shared.upsert(5, movieId, movieId * 1000L);
+    }
+    // whether or not the replicas have them yet
+    assertPositions(shared.findPageByProfile(5, 0, 500), 1, 200);
+    assertPositions(shared.findPageByProfile(5, 100, 50), 101, 150);
+    drain(shared);
+    assertPositions(shared.findPageByProfile(5, 0, 500), 1, 200);
+    assertPositions(shared.findByProfile(5), 1, 200);
+  }
+
+  private static void assertPositions(List<WatchProgress> entries, int firstMovieId, int lastMovieId) {
+    assertEquals(lastMovieId - firstMovieId + 1, entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      assertEquals(firstMovieId + i, entries.get(i).movieId);
+      assertEquals((firstMovieId + i) * 1000L, entries.get(i).positionMs);
+    }
+  }
+
+  @Test
+  void deleteOfAPendingWrite() throws SQLException {
+    shared.upsert(5, 1, 100);
+    assertTrue(shared.delete(5, 1));
+    drain(shared);
+    assertNull(shared.find(5, 1));
+    assertTrue(shared.findByProfile(5).isEmpty());
+  }
+
+  @Test
+  void failedWritesReleaseTheirPermits() throws SQLException {
+    // a single node can never acknowledge THREE, so every write fails once sent
+    CassandraProgressStore failing = new CassandraProgressStore(ConsistencyLevel.ONE, ConsistencyLevel.THREE);
+    try {
+      for (int movieId = 1; movieId <= 50; movieId++) {
+        failing.upsert(6, movieId, movieId);
+      }
+      drain(failing);
+      assertEquals(0, failing.inFlightWrites());
+      assertEquals(50, failing.failedWrites());
+      // failed writes are no longer served from memory
+      assertNull(failing.find(6, 1));
+      assertTrue(failing.findByProfile(6).isEmpty());
+    } finally {
+      failing.close();
+    }
+  }
+}
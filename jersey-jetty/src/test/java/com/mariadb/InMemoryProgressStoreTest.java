@@ -0,0 +1,9 @@
+package com.mariadb;
+
+class InMemoryProgressStoreTest extends ProgressStoreContract {
+
+  @Override
+  protected ProgressStore newStore() {
+    return new InMemoryProgressStore();
+  }
+}
@@ -0,0 +1,162 @@
+package com.mariadb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Behaviour every {@link ProgressStore} must share. Subclasses supply an empty
+ * store.
+ */
+public abstract class ProgressStoreContract {
+
+  private static final int MAX = Integer.MAX_VALUE;
+
+  protected ProgressStore store;
+
+  protected abstract ProgressStore newStore() throws SQLException;
+
+  @BeforeEach
+  public void setUp() throws SQLException {
+    store = newStore();
+  }
+
+  private static List<Integer> movieIds(List<WatchProgress> entries) {
+    List<Integer> ids = new ArrayList<>();
+    for (WatchProgress entry : entries) {
+      ids.add(entry.movieId);
+    }
+    return ids;
+  }
+
+  private static List<Integer> ids(int... ids) {
+    List<Integer> list = new ArrayList<>();
+    for (int id : ids) {
+      list.add(id);
+    }
+    return list;
+  }
+
+  @Test
+  public void upsertThenFind() throws SQLException {
+    assertNull(store.find(1, 10));
+    store.upsert(1, 10, 42_000);
+    WatchProgress entry = store.find(1, 10);
+    assertNotNull(entry);
+    assertEquals(1, entry.profileId);
+    assertEquals(10, entry.movieId);
+    assertEquals(42_000, entry.positionMs);
+    assertNotNull(entry.updatedAt);
+  }
+
+  @Test
+  public void upsertReplacesThePosition() throws SQLException {
+    store.upsert(1, 10, 1_000);
+    store.upsert(1, 10, 2_000);
+    assertEquals(2_000, store.find(1, 10).positionMs);
+    assertEquals(1, store.findByProfile(1).size());
+  }
+
+  @Test
+  public void findByProfileReturnsOnlyThatProfile() throws SQLException {
+    store.upsert(1, 10, 1);
+    store.upsert(1, 20, 2);
+    store.upsert(2, 10, 3);
+    List<Integer> ids = movieIds(store.findByProfile(1));
+    ids.sort(null);
+    assertEquals(ids(10, 20), ids);
+    assertTrue(store.findByProfile(3).isEmpty());
+  }
+
+  @Test
+  public void pagesAreOrderedByMovieId() throws SQLException {
+    for (int movieId : new int[] { 30, 10, 50, 20, 40 }) {
+      store.upsert(1, movieId, movieId);
+    }
+    assertEquals(ids(10, 20, 30, 40, 50), movieIds(store.findPageByProfile(1, 0, 10)));
+  }
+
+  @Test
+  public void pageStartsAfterTheCursor() throws SQLException {
+    for (int movieId = 1; movieId <= 5; movieId++) {
+      store.upsert(1, movieId, movieId);
+    }
+    assertEquals(ids(3, 4, 5), movieIds(store.findPageByProfile(1, 2, 10)));
+    // the cursor need not be an existing entry
+    store.delete(1, 3);
+    assertEquals(ids(4, 5), movieIds(store.findPageByProfile(1, 3, 10)));
+    assertTrue(store.findPageByProfile(1, 5, 10).isEmpty());
+  }
+
+  @Test
+  public void pageStopsAtTheLimit() throws SQLException {
+    for (int movieId = 1; movieId <= 5; movieId++) {
+      store.upsert(1, movieId, movieId);
+    }
+    assertEquals(ids(1, 2), movieIds(store.findPageByProfile(1, 0, 2)));
+    assertEquals(ids(5), movieIds(store.findPageByProfile(1, 4, 2)));
+    assertEquals(ids(1, 2, 3, 4, 5), movieIds(store.findPageByProfile(1, 0, 5)));
+  }
+
+  @Test
+  public void pagingVisitsEveryEntryOnce() throws SQLException {
+    for (int movieId = 1; movieId <= 23; movieId++) {
+      store.upsert(7, movieId, movieId);
+    }
+    List<Integer> seen = new ArrayList<>();
+    int after = 0;
+    while (true) {
+      List<WatchProgress> page = store.findPageByProfile(7, after, 5);
+      seen.addAll(movieIds(page));
+      if (page.size() < 5) {
+        break;
+      }
+      after = page.get(page.size() - 1).movieId;
+    }
+    assertEquals(23, seen.size());
+    for (int i = 0; i < seen.size(); i++) {
+      assertEquals(i + 1, (int) seen.get(i));
+    }
+  }
+
+  @Test
+  public void profilesStayApartAtTheKeyBoundaries() throws SQLException {
+    store.upsert(1, MAX, 1);
+    store.upsert(2, 1, 2);
+    store.upsert(MAX - 1, MAX, 3);
+    store.upsert(MAX, 1, 4);
+    store.upsert(MAX, MAX, 5);
+
+    assertEquals(ids(MAX), movieIds(store.findByProfile(1)));
+    assertEquals(ids(MAX), movieIds(store.findPageByProfile(1, MAX - 1, 10)));
+    assertTrue(store.findPageByProfile(1, MAX, 10).isEmpty());
+    assertEquals(ids(1), movieIds(store.findPageByProfile(2, 0, 10)));
+
+    assertEquals(ids(MAX), movieIds(store.findPageByProfile(MAX - 1, 0, 10)));
+    assertEquals(ids(1, MAX), movieIds(store.findPageByProfile(MAX, 0, 10)));
+    assertEquals(ids(MAX), movieIds(store.findPageByProfile(MAX, 1, 10)));
+    assertEquals(5, store.find(MAX, MAX).positionMs);
+    assertEquals(1, store.find(1, MAX).positionMs);
+  }
+
+  @Test
+  public void deleteReportsWhetherAnEntryWasRemoved() throws SQLException {
+    store.upsert(1, 10, 1);
+    store.upsert(2, 10, 2);
+    assertTrue(store.delete(1, 10));
+    assertNull(store.find(1, 10));
+    assertFalse(store.delete(1, 10));
+    assertFalse(store.delete(1, 99));
+    assertFalse(store.delete(3, 10));
+    // same movie, other profile
+    assertEquals(2, store.find(2, 10).positionMs);
+  }
+}
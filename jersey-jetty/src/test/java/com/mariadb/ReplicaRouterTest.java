@@ -0,0 +1,184 @@
+package com.mariadb;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.SQLNonTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ReplicaRouterTest {
+
+  private static final long READ_YOUR_WRITES_MS = 1000;
+
+  /** A pool that never connects and reports whatever load it is given. */
+  private static class FakePool extends ConnectionPool {
+    int active;
+    int waiting;
+
+    FakePool(String name) {
+      super(name, "jdbc:none", "", "", 0, 1, 0, 0, 0);
+    }
+
+    @Override
+    public int getActiveCount() {
+      return active;
+    }
+
+    @Override
+    public int getWaitingCount() {
+      return waiting;
+    }
+  }
+
+  /** A router whose clock only moves when the test says so. */
+  private static class Router extends ReplicaRouter {
+    long time = 1_000_000;
+
+    Router(List<? extends ConnectionPool> pools, boolean leastLoaded) {
+      super(new ArrayList<>(pools), leastLoaded, READ_YOUR_WRITES_MS);
+    }
+
+    @Override
+    long now() {
+      return time;
+    }
+  }
+
+  private static List<FakePool> pools(int n) {
+    List<FakePool> pools = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      pools.add(new FakePool("replica" + i));
+    }
+    return pools;
+  }
+
+  private static ConnectionPool pick(ReplicaRouter router, String consistencyKey) {
+    ReplicaRouter.Replica replica = router.pick(consistencyKey);
+    return replica == null ? null : replica.pool;
+  }
+
+  @Test
+  void withoutReplicasEverythingReadsFromThePrimary() {
+    Router router = new Router(pools(0), true);
+    assertFalse(router.hasReplicas());
+    assertNull(pick(router, null));
+    router.recordWrite("profile:1");
+    assertFalse(router.wroteRecently("profile:1"));
+  }
+
+  @Test
+  void roundRobinRotatesThroughTheReplicas() {
+    List<FakePool> pools = pools(3);
+    pools.get(0).active = 10;
+    Router router = new Router(pools, false);
+    // load is ignored
+    for (int round = 0; round < 2; round++) {
+      for (FakePool pool : pools) {
+        assertSame(pool, pick(router, null));
+      }
+    }
+    assertTrue(router.toString().contains("policy=round-robin replicaReads=6 primaryReads=0"));
+  }
+
+  @Test
+  void leastLoadedPicksTheQuietestReplica() {
+    List<FakePool> pools = pools(3);
+    pools.get(0).active = 3;
+    pools.get(1).active = 1;
+    pools.get(1).waiting = 1;
+    pools.get(2).active = 1;
+    Router router = new Router(pools, true);
+    for (int i = 0; i < 3; i++) {
+      assertSame(pools.get(2), pick(router, null));
+    }
+    // waiting borrowers count as load too
+    pools.get(2).waiting = 2;
+    for (int i = 0; i < 3; i++) {
+      assertSame(pools.get(1), pick(router, null));
+    }
+  }
+
+  @Test
+  void leastLoadedRotatesBetweenEquallyLoadedReplicas() {
+    List<FakePool> pools = pools(2);
+    Router router = new Router(pools, true);
+    assertSame(pools.get(0), pick(router, null));
+    assertSame(pools.get(1), pick(router, null));
+    assertSame(pools.get(0), pick(router, null));
+  }
+
+  @Test
+  void downReplicaIsSkippedUntilItsWindowEnds() {
+    List<FakePool> pools = pools(2);
+    Router router = new Router(pools, false);
+    router.markDown(router.pick(null));
+    for (int i = 0; i < 4; i++) {
+      assertSame(pools.get(1), pick(router, null));
+    }
+    router.time += ReplicaRouter.DOWN_MS;
+    // back in the rotation, which kept counting while it was down
+    assertSame(pools.get(1), pick(router, null));
+    assertSame(pools.get(0), pick(router, null));
+  }
+
+  @Test
+  void allReplicasDownFallsBackToThePrimary() {
+    List<FakePool> pools = pools(2);
+    Router router = new Router(pools, true);
+    router.markDown(router.pick(null));
+    router.markDown(router.pick(null));
+    assertNull(pick(router, null));
+    router.time += ReplicaRouter.DOWN_MS - 1;
+    assertNull(pick(router, null));
+    assertTrue(router.toString().contains("primaryReads=2"));
+    router.time += 1;
+    assertSame(pools.get(0), pick(router, null));
+  }
+
+  @Test
+  void recentWritePinsItsKeyToThePrimary() {
+    List<FakePool> pools = pools(1);
+    Router router = new Router(pools, true);
+    router.recordWrite("profile:1");
+    assertTrue(router.wroteRecently("profile:1"));
+    assertNull(pick(router, "profile:1"));
+    // other keys and unkeyed reads still go to the replica
+    assertSame(pools.get(0), pick(router, "profile:2"));
+    assertSame(pools.get(0), pick(router, null));
+    assertTrue(router.toString().contains("replicaReads=2 primaryReads=0 pinnedReads=1"));
+
+    router.time += READ_YOUR_WRITES_MS - 1;
+    assertNull(pick(router, "profile:1"));
+    router.time += 1;
+    assertFalse(router.wroteRecently("profile:1"));
+    assertSame(pools.get(0), pick(router, "profile:1"));
+  }
+
+  @Test
+  void laterWriteExtendsThePin() {
+    List<FakePool> pools = pools(1);
+    Router router = new Router(pools, true);
+    router.recordWrite("profile:1");
+    router.time += READ_YOUR_WRITES_MS / 2;
+    router.recordWrite("profile:1");
+    router.time += READ_YOUR_WRITES_MS / 2;
+    assertNull(pick(router, "profile:1"));
+    router.time += READ_YOUR_WRITES_MS / 2;
+    assertSame(pools.get(0), pick(router, "profile:1"));
+  }
+
+  @Test
+  void closeClosesEveryReplicaPool() {
+    List<FakePool> pools = pools(2);
+    Router router = new Router(pools, true);
+    router.close();
+    for (FakePool pool : pools) {
+      assertThrows(SQLNonTransientConnectionException.class, pool::borrow);
+    }
+  }
+}
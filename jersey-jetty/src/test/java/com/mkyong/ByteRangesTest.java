@@ -0,0 +1,281 @@
+package com.mkyong;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ByteRangesTest {
+
+  private static final long GB = 1024L * 1024 * 1024;
+  // Tue, 14 Nov 2023 22:13:20 GMT
+  private static final Date MODIFIED = new Date(1_700_000_000_000L + 123);
+  private static final String ETAG = "\"abc\"";
+
+  private static void assertRange(ByteRanges.Range range, long first, long last) {
+    assertEquals(first, range.first);
+    assertEquals(last, range.last);
+  }
+
+  // --- parse
+
+  @Test
+  void absentHeaderSelectsEverything() {
+    assertNull(ByteRanges.parse(null, 1000));
+  }
+
+  @Test
+  void closedRange() {
+    List<ByteRanges.Range> ranges = ByteRanges.parse("bytes=0-99", 1000);
+    assertEquals(1, ranges.size());
+    assertRange(ranges.get(0), 0, 99);
+    assertEquals(100, ranges.get(0).length());
+  }
+
+  @Test
+  void closedRangeIsClippedToTheEnd() {
+    assertRange(ByteRanges.parse("bytes=900-5000", 1000).get(0), 900, 999);
+  }
+
+  @Test
+  void suffixRange() {
+    assertRange(ByteRanges.parse("bytes=-500", 1000).get(0), 500, 999);
+  }
+
+  @Test
+  void suffixLongerThanTheRepresentation() {
+    assertRange(ByteRanges.parse("bytes=-5000", 1000).get(0), 0, 999);
+  }
+
+  @Test
+  void openEndedRange() {
+    assertRange(ByteRanges.parse("bytes=100-", 1000).get(0), 100, 999);
+  }
+
+  @Test
+  void multipleRangesAreSorted() {
+    List<ByteRanges.Range> ranges = ByteRanges.parse("bytes=500-599, 0-9", 1000);
+    assertEquals(2, ranges.size());
+    assertRange(ranges.get(0), 0, 9);
+    assertRange(ranges.get(1), 500, 599);
+  }
+
+  @Test
+  void overlappingRangesAreMerged() {
+    List<ByteRanges.Range> ranges = ByteRanges.parse("bytes=0-49,20-99,-10", 1000);
+    assertEquals(2, ranges.size());
+    assertRange(ranges.get(0), 0, 99);
+    assertRange(ranges.get(1), 990, 999);
+  }
+
+  @Test
+  void adjacentRangesAreMerged() {
+    List<ByteRanges.Range> ranges = ByteRanges.parse("bytes=0-9,10-19", 1000);
+    assertEquals(1, ranges.size());
+    assertRange(ranges.get(0), 0, 19);
+  }
+
+  @Test
+  void invalidHeadersAreIgnored() {
+    for (String header : Arrays.asList("", "bytes", "bytes=", "bytes=-", "bytes=abc", "bytes=1-x", "bytes=5-1",
+        "bytes=0-9,garbage", "items=0-9", "bytes=--5", "bytes=+1-2")) {
+      assertNull(ByteRanges.parse(header, 1000), header);
+    }
+  }
+
+  @Test
+  void unsatisfiableRangesAreEmpty() {
+    assertTrue(ByteRanges.parse("bytes=1000-", 1000).isEmpty());
+    assertTrue(ByteRanges.parse("bytes=1000-1999,5000-", 1000).isEmpty());
+    assertTrue(ByteRanges.parse("bytes=-0", 1000).isEmpty());
+    assertTrue(ByteRanges.parse("bytes=0-", 0).isEmpty());
+  }
+
+  @Test
+  void offsetsBeyondTwoGigabytes() {
+    long size = 5 * GB;
+    ByteRanges.Range range = ByteRanges.parse("bytes=" + (4 * GB) + "-" + (4 * GB + 99), size).get(0);
+    assertRange(range, 4 * GB, 4 * GB + 99);
+    assertEquals(100, range.length());
+    assertEquals("bytes " + (4 * GB) + "-" + (4 * GB + 99) + "/" + size, range.contentRange(size));
+
+    assertRange(ByteRanges.parse("bytes=" + (3 * GB) + "-", size).get(0), 3 * GB, size - 1);
+    assertRange(ByteRanges.parse("bytes=-" + (3 * GB), size).get(0), 2 * GB, size - 1);
+    assertEquals(size, ByteRanges.parse("bytes=0-", size).get(0).length());
+  }
+
+  @Test
+  void numbersBeyondALongMeanTheEnd() {
+    assertRange(ByteRanges.parse("bytes=0-99999999999999999999", 1000).get(0), 0, 999);
+    assertTrue(ByteRanges.parse("bytes=99999999999999999999-", 1000).isEmpty());
+  }
+
+  // --- windows
+
+  @Test
+  void openEndedRangeIsCappedByTheWindow() {
+    assertRange(ByteRanges.parse("bytes=100-", 10_000, 1000).get(0), 100, 1099);
+  }
+
+  @Test
+  void windowStopsAtTheEnd() {
+    assertRange(ByteRanges.parse("bytes=9500-", 10_000, 1000).get(0), 9500, 9999);
+  }
+
+  @Test
+  void windowBeyondTwoGigabytes() {
+    assertRange(ByteRanges.parse("bytes=" + (3 * GB) + "-", 5 * GB, 4 * 1024 * 1024).get(0), 3 * GB,
+        3 * GB + 4 * 1024 * 1024 - 1);
+  }
+
+  @Test
+  void windowLeavesClosedAndSuffixRangesAlone() {
+    assertRange(ByteRanges.parse("bytes=0-4999", 10_000, 1000).get(0), 0, 4999);
+    assertRange(ByteRanges.parse("bytes=-5000", 10_000, 1000).get(0), 5000, 9999);
+  }
+
+  @Test
+  void zeroWindowMeansNoLimit() {
+    assertRange(ByteRanges.parse("bytes=100-", 10_000, 0).get(0), 100, 9999);
+  }
+
+  // --- If-Range
+
+  @Test
+  void noIfRangeMatches() {
+    assertTrue(ByteRanges.ifRangeMatches(null, ETAG, MODIFIED));
+  }
+
+  @Test
+  void strongEtag() {
+    assertTrue(ByteRanges.ifRangeMatches("\"abc\"", ETAG, MODIFIED));
+    assertFalse(ByteRanges.ifRangeMatches("\"abd\"", ETAG, MODIFIED));
+    assertFalse(ByteRanges.ifRangeMatches("\"abc\"", null, MODIFIED));
+  }
+
+  @Test
+  void weakEtagNeverMatches() {
+    assertFalse(ByteRanges.ifRangeMatches("W/\"abc\"", ETAG, MODIFIED));
+    assertFalse(ByteRanges.ifRangeMatches("W/\"abc\"", "W/\"abc\"", MODIFIED));
+    assertFalse(ByteRanges.ifRangeMatches("\"abc\"", "W/\"abc\"", MODIFIED));
+  }
+
+  @Test
+  void httpDate() {
+    assertTrue(ByteRanges.ifRangeMatches("Tue, 14 Nov 2023 22:13:20 GMT", ETAG, MODIFIED));
+    assertFalse(ByteRanges.ifRangeMatches("Tue, 14 Nov 2023 22:13:21 GMT", ETAG, MODIFIED));
+    assertFalse(ByteRanges.ifRangeMatches("Tue, 14 Nov 2023 22:13:20 GMT", ETAG, null));
+    assertFalse(ByteRanges.ifRangeMatches("yesterday", ETAG, MODIFIED));
+  }
+
+  // --- respond
+
+  private static final byte[] DATA = new byte[100];
+
+  static {
+    for (int i = 0; i < DATA.length; i++) {
+      DATA[i] = (byte) i;
+    }
+  }
+
+  private static Response respond(String range, String ifRange) {
+    return ByteRanges.respond(range, ifRange, ETAG, MODIFIED, DATA.length, "video/mp4",
+        (start, length, output) -> output.write(DATA, (int) start, (int) length));
+  }
+
+  private static byte[] body(Response response) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ((StreamingOutput) response.getEntity()).write(output);
+    return output.toByteArray();
+  }
+
+  @Test
+  void respondWithEverything() throws IOException {
+    Response response = respond(null, null);
+    assertEquals(200, response.getStatus());
+    assertEquals("100", response.getHeaderString("Content-Length"));
+    assertEquals("bytes", response.getHeaderString("Accept-Ranges"));
+    assertEquals(ETAG, response.getHeaderString("ETag"));
+    assertNull(response.getHeaderString("Content-Range"));
+    assertArrayEquals(DATA, body(response));
+  }
+
+  @Test
+  void respondWithOneRange() throws IOException {
+    Response response = respond("bytes=10-19", null);
+    assertEquals(206, response.getStatus());
+    assertEquals("10", response.getHeaderString("Content-Length"));
+    assertEquals("bytes 10-19/100", response.getHeaderString("Content-Range"));
+    assertArrayEquals(Arrays.copyOfRange(DATA, 10, 20), body(response));
+  }
+
+  @Test
+  void respondWithEverythingWhenIfRangeIsStale() throws IOException {
+    Response response = respond("bytes=10-19", "\"old\"");
+    assertEquals(200, response.getStatus());
+    assertArrayEquals(DATA, body(response));
+  }
+
+  @Test
+  void respondWithMultipleRanges() throws IOException {
+    Response response = respond("bytes=0-1,98-", null);
+    assertEquals(206, response.getStatus());
+    assertNull(response.getHeaderString("Content-Range"));
+    MediaType type = response.getMediaType();
+    assertEquals("multipart", type.getType());
+    assertEquals("byteranges", type.getSubtype());
+    String boundary = type.getParameters().get("boundary");
+    assertNotNull(boundary);
+
+    byte[] body = body(response);
+    assertEquals(String.valueOf(body.length), response.getHeaderString("Content-Length"));
+    String text = new String(body, StandardCharsets.ISO_8859_1);
+    String expected = "\r\n--" + boundary + "\r\nContent-Type: video/mp4\r\nContent-Range: bytes 0-1/100\r\n\r\n"
+        + "\u0000\u0001"
+        + "\r\n--" + boundary + "\r\nContent-Type: video/mp4\r\nContent-Range: bytes 98-99/100\r\n\r\n"
+        + "bc"
+        + "\r\n--" + boundary + "--\r\n";
+    assertEquals(expected, text);
+  }
+
+  @Test
+  void respondWithNotSatisfiable() {
+    Response response = respond("bytes=100-", null);
+    assertEquals(416, response.getStatus());
+    assertEquals("bytes */100", response.getHeaderString("Content-Range"));
+    assertEquals("bytes", response.getHeaderString("Accept-Ranges"));
+  }
+
+  @Test
+  void respondWithNotSatisfiableForTooManyRanges() {
+    StringBuilder header = new StringBuilder("bytes=");
+    for (int i = 0; i <= ByteRanges.MAX_RANGES; i++) {
+      header.append(i == 0 ? "" : ",").append(i * 3).append('-').append(i * 3);
+    }
+    Response response = respond(header.toString(), null);
+    assertEquals(416, response.getStatus());
+    assertEquals("bytes */100", response.getHeaderString("Content-Range"));
+  }
+
+  @Test
+  void respondCapsOpenEndedRangesToTheWindow() throws IOException {
+    Response response = ByteRanges.respond("bytes=10-", null, ETAG, MODIFIED, DATA.length, "video/mp4", 5,
+        (start, length, output) -> output.write(DATA, (int) start, (int) length));
+    assertEquals(206, response.getStatus());
+    assertEquals("bytes 10-14/100", response.getHeaderString("Content-Range"));
+    assertArrayEquals(Arrays.copyOfRange(DATA, 10, 15), body(response));
+  }
+}